@@ -0,0 +1,244 @@
+package com.example.watermark;
+
+import android.content.ContentResolver;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Orders a batch before it reaches the decode pool. The sizes come from the metadata already known
+ * (MediaStore dimensions, or file and archive entry sizes), only the jobs nothing is known about
+ * have their bounds read, in parallel. Then the jobs are sorted longest first so a large image
+ * queued last does not finish alone on one core while the others idle (longest-processing-time
+ * scheduling).
+ * Images of the same size and day end up next to each other, so decoded bitmaps and laid out
+ * stamps are reused back to back.
+ */
+final class BatchPlanner {
+  private final static String TAG = "BatchPlanner";
+
+  /**
+   * Throughput assumed while the capability profile is still being measured.
+   */
+  private static final float DEFAULT_MEGAPIXELS_PER_SECOND = 20f;
+
+  private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+
+  /**
+   * Pixels per byte of an image whose size is known but not its dimensions, a camera JPEG takes
+   * about 2 bits per pixel. Only orders the jobs, the decode reads the real bounds.
+   */
+  private static final int ESTIMATED_PIXELS_PER_BYTE = 4;
+
+  /**
+   * Threads reading bounds, the planning thread included. The extra ones run on
+   * {@link WorkerPools#tiles()}, whose workers never wait on the planning thread.
+   */
+  private static final int BOUNDS_READERS = WorkerPools.CORE_COUNT;
+
+  /**
+   * Most pixels first, then grouped by size and day, then in list order.
+   */
+  private static final Comparator<Item> LONGEST_FIRST = (a, b) -> {
+    int order = Long.compare(b.pixels, a.pixels);
+    if (order == 0) {
+      order = Integer.compare(a.width, b.width);
+    }
+    if (order == 0) {
+      order = Long.compare(a.day, b.day);
+    }
+    if (order == 0) {
+      order = Integer.compare(a.job.index, b.job.index);
+    }
+    return order;
+  };
+
+  private BatchPlanner() {
+  }
+
+  /**
+   * Size up the jobs and order them. Jobs whose size cannot be found go last, their decode reports
+   * the error.
+   */
+  static Plan plan(final ContentResolver resolver, final MediaMetadataResolver metadataResolver,
+      final List<WatermarkBatchRunner.Job> jobs) {
+    final float decodeRate = megapixelsPerSecond(true);
+    final float encodeRate = megapixelsPerSecond(false);
+
+    final Item[] sized = new Item[jobs.size()];
+    final List<Integer> unknown = new ArrayList<>();
+    for (int i = 0; i < sized.length; i++) {
+      MediaMetadataResolver.Metadata metadata = metadataResolver.getCached(jobs.get(i).source);
+      if (metadata != null && (metadata.hasDimensions() || metadata.size > 0)) {
+        sized[i] = item(jobs.get(i), metadata, 0, 0, decodeRate, encodeRate);
+      } else {
+        unknown.add(i);
+      }
+    }
+
+    if (!unknown.isEmpty()) {
+      final AtomicInteger next = new AtomicInteger();
+      Runnable reader = () -> {
+        int n;
+        while ((n = next.getAndIncrement()) < unknown.size()) {
+          int i = unknown.get(n);
+          sized[i] = readItem(resolver, metadataResolver, jobs.get(i), decodeRate, encodeRate);
+        }
+      };
+      List<Future<?>> readers = new ArrayList<>();
+      for (int i = 1; i < Math.min(BOUNDS_READERS, unknown.size()); i++) {
+        readers.add(WorkerPools.tiles().submit(reader));
+      }
+      reader.run();
+      try {
+        for (Future<?> future : readers) {
+          future.get();
+        }
+      } catch (InterruptedException e) {
+        // the jobs not read yet stay unknown
+        next.set(unknown.size());
+        Thread.currentThread().interrupt();
+      } catch (ExecutionException e) {
+        Log.w(TAG, "Failed to read bounds", e.getCause());
+      }
+      Log.d(TAG, "Read the bounds of " + unknown.size() + " of " + jobs.size() + " jobs");
+    }
+
+    List<Item> items = new ArrayList<>(sized.length);
+    for (int i = 0; i < sized.length; i++) {
+      items.add(sized[i] != null
+          ? sized[i]
+          : item(jobs.get(i), MediaMetadataResolver.Metadata.UNKNOWN, 0, 0, decodeRate,
+              encodeRate));
+    }
+
+    final int workers = WorkerPools.CORE_COUNT;
+    long listOrderMillis = makespan(items, workers);
+    Collections.sort(items, LONGEST_FIRST);
+    long plannedMillis = makespan(items, workers);
+
+    List<WatermarkBatchRunner.Job> ordered = new ArrayList<>(items.size());
+    for (Item item : items) {
+      ordered.add(item.job);
+    }
+    Log.i(TAG, "Planned " + jobs.size() + " jobs on " + workers + " workers, expected makespan "
+        + plannedMillis + "ms (" + listOrderMillis + "ms in list order)");
+    return new Plan(ordered, plannedMillis);
+  }
+
+  /**
+   * Size up a job nothing was known about: its metadata is queried and, if that has neither the
+   * dimensions nor the size, its bounds are read.
+   */
+  private static Item readItem(ContentResolver resolver,
+      MediaMetadataResolver metadataResolver, WatermarkBatchRunner.Job job, float decodeRate,
+      float encodeRate) {
+    MediaMetadataResolver.Metadata metadata = metadataResolver.get(job.source);
+    int width = 0;
+    int height = 0;
+    if (!metadata.hasDimensions() && metadata.size <= 0) {
+      try {
+        BitmapFactory.Options bounds = BitmapUtil.decodeImageForOption(resolver, job.source);
+        width = Math.max(0, bounds.outWidth);
+        height = Math.max(0, bounds.outHeight);
+      } catch (IOException | RuntimeException e) {
+        Log.w(TAG, "Failed to read the bounds of " + job.source, e);
+      }
+    }
+    return item(job, metadata, width, height, decodeRate, encodeRate);
+  }
+
+  /**
+   * @param width  width read from the bounds, 0 if they were not read
+   * @param height height read from the bounds
+   */
+  private static Item item(WatermarkBatchRunner.Job job, MediaMetadataResolver.Metadata metadata,
+      int width, int height, float decodeRate, float encodeRate) {
+    long pixels;
+    if (width > 0 && height > 0) {
+      pixels = (long) width * height;
+    } else if (metadata.hasDimensions()) {
+      width = metadata.width;
+      pixels = (long) metadata.width * metadata.height;
+    } else {
+      // no width to group by, the estimate is unlikely to equal another one anyway
+      width = 0;
+      pixels = metadata.size * ESTIMATED_PIXELS_PER_BYTE;
+    }
+    long millis = metadata.dateTakenMillis != 0
+        ? metadata.dateTakenMillis
+        : metadata.dateModifiedMillis;
+    long day = (millis + TimeZone.getDefault().getOffset(millis)) / DAY_MILLIS;
+
+    float megapixels = pixels / 1_000_000f;
+    long costMillis = (long) (megapixels / decodeRate * 1000 + megapixels / encodeRate * 1000);
+    return new Item(job, width, pixels, day, costMillis);
+  }
+
+  /**
+   * Finish time of the last job when each job is taken in order by the first idle worker, as
+   * {@link WorkerPools#decode()} does.
+   */
+  private static long makespan(List<Item> items, int workers) {
+    PriorityQueue<Long> finishTimes = new PriorityQueue<>(workers);
+    for (int i = 0; i < workers; i++) {
+      finishTimes.add(0L);
+    }
+    long makespan = 0;
+    for (Item item : items) {
+      long finish = finishTimes.poll() + item.costMillis;
+      finishTimes.add(finish);
+      makespan = Math.max(makespan, finish);
+    }
+    return makespan;
+  }
+
+  private static float megapixelsPerSecond(boolean decode) {
+    CapabilityProfile profile = CapabilityProfile.get();
+    float rate = profile == null ? 0
+        : decode ? profile.decodeMegapixelsPerSecond : profile.encodeMegapixelsPerSecond;
+    return rate > 0 ? rate : DEFAULT_MEGAPIXELS_PER_SECOND;
+  }
+
+  /**
+   * The ordered jobs and the makespan expected for them.
+   */
+  static final class Plan {
+    final List<WatermarkBatchRunner.Job> jobs;
+    final long expectedMakespanMillis;
+
+    Plan(List<WatermarkBatchRunner.Job> jobs, long expectedMakespanMillis) {
+      this.jobs = Collections.unmodifiableList(jobs);
+      this.expectedMakespanMillis = expectedMakespanMillis;
+    }
+  }
+
+  private static final class Item {
+    final WatermarkBatchRunner.Job job;
+    final int width;
+
+    /**
+     * Known or estimated, 0 if neither.
+     */
+    final long pixels;
+    final long day;
+    final long costMillis;
+
+    Item(WatermarkBatchRunner.Job job, int width, long pixels, long day, long costMillis) {
+      this.job = job;
+      this.width = width;
+      this.pixels = pixels;
+      this.day = day;
+      this.costMillis = costMillis;
+    }
+  }
+}
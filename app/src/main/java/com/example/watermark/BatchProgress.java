@@ -0,0 +1,61 @@
+package com.example.watermark;
+
+import android.net.Uri;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable snapshot of the running batch, posted to the UI a few times per second instead of once
+ * per image.
+ */
+final class BatchProgress {
+  static final BatchProgress IDLE =
+      new BatchProgress(0, 0, 0, Collections.<Completed>emptyList());
+
+  final int total;
+  final int succeeded;
+  final int failed;
+
+  /**
+   * Images finished since the previous snapshot.
+   */
+  final List<Completed> completed;
+
+  BatchProgress(int total, int succeeded, int failed, List<Completed> completed) {
+    this.total = total;
+    this.succeeded = succeeded;
+    this.failed = failed;
+    this.completed = Collections.unmodifiableList(completed);
+  }
+
+  int done() {
+    return succeeded + failed;
+  }
+
+  boolean isFinished() {
+    return done() >= total;
+  }
+
+  /**
+   * One finished image, {@link #output} is null if it failed.
+   */
+  static final class Completed {
+    final int index;
+    final Uri source;
+    final Uri output;
+
+    Completed(int index, Uri source, Uri output) {
+      this.index = index;
+      this.source = source;
+      this.output = output;
+    }
+  }
+
+  interface Listener {
+
+    /**
+     * Called on the main thread.
+     */
+    void onProgress(BatchProgress progress);
+  }
+}
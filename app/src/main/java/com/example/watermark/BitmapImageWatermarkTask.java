@@ -1,83 +1,122 @@
 package com.example.watermark;
 
 import android.content.Context;
-import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
 import android.graphics.Matrix;
+import android.graphics.RectF;
 import android.media.ExifInterface;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Environment;
-import android.provider.MediaStore;
 import android.util.Log;
 import androidx.documentfile.provider.DocumentFile;
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
-import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.Locale;
+import java.util.List;
+import java.util.concurrent.CancellationException;
 
 /**
  * Created by suli on 2020/9/9
  * <p>
  * 给图片添加文字水印
  **/
-class BitmapImageWatermarkTask extends AsyncTask<Void, Void, BitmapImageWatermarkTask.Result> {
+class BitmapImageWatermarkTask implements Runnable {
   final static String TAG = "WatermarkTask";
 
   final Context context;
   final Uri srcUri;
-  final float ratio;
-  final String location;
+  final WatermarkRenderPlan plan;
   final int index;
+  final MediaMetadataResolver metadataResolver;
+  final SourcePrefetcher prefetcher;
+  final EncodeProfiler profiler;
   final OnResultListener listener;
 
-  final SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd", Locale.CHINA);
+  private volatile boolean cancelled;
 
   public BitmapImageWatermarkTask(
       Context context,
       Uri srcUri,
-      float ratio,
-      String location,
+      WatermarkRenderPlan plan,
       int index,
+      MediaMetadataResolver metadataResolver,
+      SourcePrefetcher prefetcher,
+      EncodeProfiler profiler,
       OnResultListener listener
   ) {
     this.context = context;
     this.srcUri = srcUri;
-    this.ratio = ratio;
-    this.location = location;
+    this.plan = plan;
     this.index = index;
+    this.metadataResolver = metadataResolver;
+    this.prefetcher = prefetcher;
+    this.profiler = profiler;
     this.listener = listener;
   }
 
+  /**
+   * Skip the task if it has not started yet, a running task finishes its image. A skipped task
+   * reports a {@link CancellationException}.
+   */
+  void cancel() {
+    cancelled = true;
+  }
+
+  boolean isCancelled() {
+    return cancelled;
+  }
+
+  /**
+   * Runs on the worker thread and reports the result there too, the listener is responsible for
+   * getting it to the UI.
+   */
   @Override
-  protected Result doInBackground(Void... voids) {
+  public void run() {
     if (isCancelled()) {
-      return null;
+      prefetcher.discard(srcUri);
+      listener.onResult(new Result(null, new CancellationException("Cancelled " + srcUri)));
+      return;
     }
+    listener.onResult(process());
+  }
 
+  Result process() {
+    ImageSource source = null;
     try {
+      // read from memory if the prefetcher got to it, the decoders open it several times
+      source = prefetcher.acquire(srcUri);
+
       // 1. read exif
-      ExifInterface exif = new ExifInterface(context.getContentResolver().openInputStream(srcUri));
+      final ExifInterface exif;
+      final JpegMetadata metadata;
+      InputStream stream = source.open();
+      try {
+        exif = new ExifInterface(stream);
+      } finally {
+        BitmapUtil.closeSafe(stream);
+      }
+      // the raw segments are copied into the output as it is encoded
+      stream = source.open();
+      try {
+        metadata = JpegMetadata.read(new BufferedInputStream(stream));
+      } finally {
+        BitmapUtil.closeSafe(stream);
+      }
       final String dateTime = exif.getAttribute(ExifInterface.TAG_DATETIME);
       final String dateTimeOriginal = exif.getAttribute(ExifInterface.TAG_DATETIME_ORIGINAL);
       final String dateTimeDigitized = exif.getAttribute(ExifInterface.TAG_DATETIME_DIGITIZED);
       final int orientation =
           exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
 
-      if (dateTime == null) {
-        Cursor cursor = context.getContentResolver().query(srcUri, new String[] {
-            MediaStore.Files.FileColumns.DATE_MODIFIED,
-            MediaStore.Files.FileColumns.DATE_ADDED,
-            MediaStore.Files.FileColumns.SIZE,
-        }, null, null, null);
-        cursor.moveToFirst();
-        String time = cursor.getString(0);
-        String addedTime = cursor.getString(1);
-        long size = cursor.getLong(2);
-        cursor.close();
-        Log.d(TAG, srcUri + "> createTime:" + time + ",addedTime:" + addedTime + ",size:" + size);
+      // falls back to the MediaStore dates prefetched for the whole batch
+      final String resolvedDateTime = metadataResolver.resolveDateTime(srcUri, exif);
+      if (resolvedDateTime == null) {
+        throw new IOException("No capture or modification date for " + srcUri);
       }
 
       Log.d("BitmapTask",
@@ -89,70 +128,139 @@ class BitmapImageWatermarkTask extends AsyncTask<Void, Void, BitmapImageWatermar
               + ", dateTimeDigitized:"
               + dateTimeDigitized
               + ", orientation:"
-              + orientation);
-
-      BitmapFactory.Options srcOptions =
-          BitmapUtil.decodeImageForOption(context.getContentResolver(), srcUri);
-      Bitmap srcBitmap = BitmapUtil.decodeImage(context.getContentResolver(), srcUri, srcOptions);
-
-      Bitmap rotateBitmap = null;
-      switch (orientation) {
-        case ExifInterface.ORIENTATION_ROTATE_90:
-          rotateBitmap = BitmapUtil.rotate(srcBitmap, 90);
-          break;
-        case ExifInterface.ORIENTATION_ROTATE_180:
-          rotateBitmap = BitmapUtil.rotate(srcBitmap, 180);
-          break;
-        case ExifInterface.ORIENTATION_ROTATE_270:
-          rotateBitmap = BitmapUtil.rotate(srcBitmap, 270);
-          break;
+              + orientation
+              + ", resolved:"
+              + resolvedDateTime);
+
+      final WatermarkRenderPlan.Values values = plan.resolve(exif, resolvedDateTime);
+      final int degrees = BitmapUtil.exifOrientationToDegrees(orientation);
+
+      // named after the capture day, 2020:09:09 12:00:00 gives 2020-09-09
+      final int space = resolvedDateTime.indexOf(' ');
+      final String day =
+          (space < 0 ? resolvedDateTime : resolvedDateTime.substring(0, space)).replace(':', '-');
+      final String outputName = day + "_" + index;
+
+      // lets a later scan skip this output without decoding it, the same hash as
+      // WatermarkBatchRunner.getParametersHash. The template includes the crop
+      final String parametersHash = ProcessedMarker.parametersHash(plan.template, profiler.policy);
+      final byte[] processedSegment = ProcessedMarker.segment(parametersHash);
+      final JpegSegmentInjector.SegmentFilter filter = metadata.replacedSegmentsFilter();
+
+      // bounds for the tiling and decode choices, the source type also picks the output format
+      BitmapFactory.Options srcOptions = BitmapUtil.decodeImageForOption(source);
+      final String sourceMimeType = srcOptions.outMimeType;
+      final Bitmap result;
+      final RectF crop = plan.template.crop;
+      if (crop == null && TiledWatermarkWriter.shouldTile(srcOptions)) {
+        // too big to hold at full resolution, stream it strip by strip instead. The pixels keep
+        // their stored orientation, only the flips the writer drops are reset. The strip encoder
+        // only writes JPEG
+        Uri output = outputUri(outputName, OutputFormat.JPEG);
+        TiledWatermarkWriter.write(context, source, srcOptions, orientation, plan, values,
+            output, profiler.policy.lossyQuality, jpegSegments(metadata, degrees == 0,
+                srcOptions.outWidth, srcOptions.outHeight, processedSegment), filter);
+        return new Result(output, null);
       }
-      if (rotateBitmap != null) {
-        srcBitmap.recycle();
-        srcBitmap = rotateBitmap;
+      if (crop != null) {
+        // only the crop is decoded, then rotated, scaled and stamped in one draw
+        result = BitmapUtil.cropRotateAndWatermark(source, srcOptions, crop, degrees, plan, values)
+            .bitmap;
+      } else {
+        result = decodeAndStamp(source, srcOptions, degrees, values);
       }
 
-      String watermarkText = dateTime.split(" ")[0].replaceAll(":", "-");
-      final int offset = (int) (srcBitmap.getWidth() * 0.045);
-      final int textSize = (int) (srcBitmap.getHeight() * 0.035);
-
-      Log.i("bitmap", "add watermark height:"
-          + srcBitmap.getHeight()
-          + ", text:"
-          + watermarkText
-          + ", textSize:"
-          + textSize
-          + ", offset:"
-          + offset);
-
-      Bitmap result =
-          BitmapUtil.addWatermarkToBitmap(srcBitmap, watermarkText, ratio, location, offset,
-              textSize, 0xFFFFFFFF);
-
-      Uri output =
-          Uri.fromFile(
-              new File(context.getExternalFilesDir(Environment.DIRECTORY_DOWNLOADS).getPath(),
-                  watermarkText + "_" + index + ".jpg"));
-      Log.d("watermark", "output watermark file:" + output);
-      BitmapUtil.writeBitmapToUri(context, result, output, Bitmap.CompressFormat.JPEG, 100);
+      // the first images of each source type also run the trial encodes
+      final OutputFormat format = profiler.choose(sourceMimeType, result);
+      Uri output = outputUri(outputName, format);
+      // the pixels are upright now. The segments only go into JPEG outputs, PNG and WebP ones
+      // get the marker as a chunk
+      BitmapUtil.writeBitmapToUri(context, result, output, format.compressFormat(),
+          format.quality(profiler.policy.lossyQuality),
+          jpegSegments(metadata, true, result.getWidth(), result.getHeight(), processedSegment),
+          filter, processedChunk(format, parametersHash));
+      BitmapPool.put(result);
 
       return new Result(output, null);
     } catch (Exception e) {
       e.printStackTrace();
       return new Result(null, e);
+    } finally {
+      if (source != null) {
+        prefetcher.release(source);
+      }
     }
   }
 
-  @Override
-  protected void onPostExecute(Result result) {
-    super.onPostExecute(result);
-    if (isCancelled()) {
-      return;
+  /**
+   * Decode the whole image, turn it upright and draw the stamp on it.
+   */
+  private Bitmap decodeAndStamp(ImageSource source, BitmapFactory.Options srcOptions, int degrees,
+      WatermarkRenderPlan.Values values) throws IOException {
+    // at the tail of a batch split a large image over the idle cores
+    final int parallelism = WorkerPools.tailParallelism();
+    // mutable so the stamp is drawn in place and the bitmap can be pooled for the next image
+    srcOptions.inMutable = true;
+    Bitmap srcBitmap = parallelism > 1 && ParallelRegionDecoder.isWorthIt(srcOptions, 1)
+        ? ParallelRegionDecoder.decode(source, srcOptions, parallelism)
+        : BitmapUtil.decodeImage(source, srcOptions);
+
+    if (degrees != 0) {
+      Bitmap rotateBitmap = BitmapUtil.rotate(srcBitmap, degrees);
+      BitmapPool.put(srcBitmap);
+      srcBitmap = rotateBitmap;
     }
 
-    if (result != null) {
-      listener.onResult(result);
+    final WatermarkRenderPlan.Stamp stamp =
+        plan.layout(values, srcBitmap.getWidth(), srcBitmap.getHeight());
+
+    Log.i("bitmap", "add watermark height:"
+        + srcBitmap.getHeight()
+        + ", text:"
+        + values.lines
+        + ", bounds:"
+        + stamp.bounds);
+
+    if (srcBitmap.isMutable()) {
+      stamp.draw(new Canvas(srcBitmap));
+      return srcBitmap;
     }
+    Bitmap result = BitmapUtil.addWatermarkToBitmap(srcBitmap, stamp);
+    BitmapPool.put(srcBitmap);
+    return result;
+  }
+
+  private Uri outputUri(String name, OutputFormat format) {
+    Uri output = Uri.fromFile(
+        new File(context.getExternalFilesDir(Environment.DIRECTORY_DOWNLOADS).getPath(),
+            name + "." + format.extension));
+    Log.d("watermark", "output watermark file:" + output);
+    return output;
+  }
+
+  /**
+   * The processed marker chunk for a PNG or WebP output, null for JPEG.
+   */
+  private static byte[] processedChunk(OutputFormat format, String parametersHash) {
+    switch (format) {
+      case PNG:
+        return ProcessedMarker.pngChunk(parametersHash);
+      case WEBP_LOSSY:
+      case WEBP_LOSSLESS:
+        return ProcessedMarker.webpChunk(parametersHash);
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * The source metadata patched for the output, followed by the processed marker.
+   */
+  private static List<byte[]> jpegSegments(JpegMetadata metadata, boolean resetOrientation,
+      int width, int height, byte[] processedSegment) {
+    List<byte[]> segments = metadata.segments(resetOrientation, width, height);
+    segments.add(processedSegment);
+    return segments;
   }
 
   static final class Result {
@@ -0,0 +1,104 @@
+package com.example.watermark;
+
+import android.graphics.Bitmap;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decoded bitmaps kept between images and handed to the next decode as
+ * {@link android.graphics.BitmapFactory.Options#inBitmap}, so a run of images of the same size
+ * (which {@link BatchPlanner} puts back to back) does not allocate a new bitmap per image.<br>
+ * Holds at most one bitmap per decode thread and {@link #budget()} bytes in total.
+ */
+final class BitmapPool {
+
+  /**
+   * Part of the app's memory class the pooled bitmaps may take.
+   */
+  private static final int BUDGET_MEMORY_CLASS_DIVISOR = 4;
+
+  private static final long DEFAULT_BUDGET = 32L * 1024 * 1024;
+
+  // guarded by BitmapPool.class
+  private static final List<Bitmap> bitmaps = new ArrayList<>();
+  private static long pooledBytes;
+
+  private BitmapPool() {
+  }
+
+  /**
+   * The smallest pooled bitmap that can be decoded into at the given size, null if none fits.
+   */
+  static synchronized Bitmap take(int width, int height, Bitmap.Config config) {
+    final long needed = (long) width * height * SampleSizePlanner.bytesPerPixel(config);
+    Bitmap best = null;
+    for (Bitmap bitmap : bitmaps) {
+      if (bitmap.getConfig() == config
+          && bitmap.getAllocationByteCount() >= needed
+          && (best == null || bitmap.getAllocationByteCount() < best.getAllocationByteCount())) {
+        best = bitmap;
+      }
+    }
+    if (best != null) {
+      bitmaps.remove(best);
+      pooledBytes -= best.getAllocationByteCount();
+    }
+    return best;
+  }
+
+  /**
+   * Keep a bitmap that is no longer drawn or written for a later decode. Bitmaps that cannot be
+   * decoded into, or do not fit, are recycled.
+   */
+  static void put(Bitmap bitmap) {
+    if (bitmap == null || bitmap.isRecycled()) {
+      return;
+    }
+    if (!bitmap.isMutable()) {
+      bitmap.recycle();
+      return;
+    }
+    List<Bitmap> evicted = new ArrayList<>();
+    synchronized (BitmapPool.class) {
+      final long budget = budget();
+      final long bytes = bitmap.getAllocationByteCount();
+      if (bytes > budget) {
+        evicted.add(bitmap);
+      } else {
+        bitmaps.add(bitmap);
+        pooledBytes += bytes;
+        // the oldest go first
+        while (bitmaps.size() > WorkerPools.CORE_COUNT || pooledBytes > budget) {
+          Bitmap oldest = bitmaps.remove(0);
+          pooledBytes -= oldest.getAllocationByteCount();
+          evicted.add(oldest);
+        }
+      }
+    }
+    for (Bitmap old : evicted) {
+      old.recycle();
+    }
+  }
+
+  /**
+   * Recycle every pooled bitmap, at the end of a batch.
+   */
+  static void clear() {
+    List<Bitmap> evicted;
+    synchronized (BitmapPool.class) {
+      evicted = new ArrayList<>(bitmaps);
+      bitmaps.clear();
+      pooledBytes = 0;
+    }
+    for (Bitmap bitmap : evicted) {
+      bitmap.recycle();
+    }
+  }
+
+  private static long budget() {
+    CapabilityProfile profile = CapabilityProfile.get();
+    return profile != null && profile.memoryClass > 0
+        ? profile.memoryClass * 1024L * 1024 / BUDGET_MEMORY_CLASS_DIVISOR
+        : DEFAULT_BUDGET;
+  }
+}
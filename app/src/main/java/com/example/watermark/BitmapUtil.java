@@ -11,14 +11,19 @@ import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Rect;
 import android.graphics.RectF;
+import android.media.ExifInterface;
 import android.net.Uri;
 
+import android.os.Build;
 import android.util.Log;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Collections;
+import java.util.List;
 
 import javax.microedition.khronos.egl.EGL10;
 import javax.microedition.khronos.egl.EGLConfig;
@@ -35,7 +40,7 @@ public final class BitmapUtil {
     /**
      * Used to know the max texture size allowed to be rendered
      */
-    private static int mMaxTextureSize;
+    private static volatile int mMaxTextureSize;
 
     static Bitmap rotate(Bitmap bitmap, int degrees) {
         Matrix matrix = new Matrix();
@@ -49,22 +54,15 @@ public final class BitmapUtil {
      * rotation.<br>
      * if the rotation is not 0,90,180 or 270 degrees then we must first crop a larger area of the
      * image that contains the requires rectangle, rotate and then crop again a sub rectangle.<br>
-     * If crop fails due to OOM we scale the cropping image by 0.5 every time it fails until it is
-     * small enough.
+     * The cropping image is scaled down by a power of 2 (up to 8) planned up front so it fits in the
+     * available heap.
      */
     static BitmapSampled cropBitmapObjectHandleOOM(Bitmap bitmap, RectF fittedCropRect) {
-        int scale = 1;
-        while (true) {
-            try {
-                Bitmap cropBitmap = cropBitmapObjectWithScale(bitmap, fittedCropRect, 1 / (float) scale);
-                return new BitmapSampled(cropBitmap, scale);
-            } catch (OutOfMemoryError e) {
-                scale *= 2;
-                if (scale > 8) {
-                    throw e;
-                }
-            }
-        }
+        Rect rect = getRectFromFittedCrop(fittedCropRect, bitmap.getWidth(), bitmap.getHeight());
+        SampleSizePlanner.Plan plan =
+                SampleSizePlanner.plan(rect.width(), rect.height(), bitmap.getConfig(), 1, 8);
+        Bitmap cropBitmap = cropBitmapObjectWithScale(bitmap, fittedCropRect, 1 / (float) plan.sampleSize);
+        return new BitmapSampled(cropBitmap, plan.sampleSize);
     }
 
     /**
@@ -99,7 +97,10 @@ public final class BitmapUtil {
     /**
      * Crop image bitmap from URI by decoding it with specific width and height to down-sample if
      * required.<br>
-     * Additionally if OOM is thrown try to increase the sampling (2,4,8).
+     * Additionally the sampling (2,4,8,16) is raised up front if the crop would not fit in the
+     * available heap.
+     *
+     * @throws SampleSizePlanner.NoFitException if the crop does not fit even at sampling 16
      */
     public static BitmapSampled cropBitmap(
             Context context,
@@ -108,32 +109,16 @@ public final class BitmapUtil {
             int orgWidth,
             int orgHeight
     ) {
-        int sampleMulti = 1;
-        while (true) {
-            try {
-                // if successful, just return the resulting bitmap
-                return cropBitmap(
-                        context,
-                        loadedImageUri,
-                        fittedCrop,
-                        orgWidth,
-                        orgHeight,
-                        sampleMulti);
-            } catch (OutOfMemoryError e) {
-                // if OOM try to increase the sampling to lower the memory usage
-                sampleMulti *= 2;
-                if (sampleMulti > 16) {
-                    throw new RuntimeException(
-                            "Failed to handle OOM by sampling ("
-                                    + sampleMulti
-                                    + "): "
-                                    + loadedImageUri
-                                    + "\r\n"
-                                    + e.getMessage(),
-                            e);
-                }
-            }
-        }
+        Rect rect = getRectFromFittedCrop(fittedCrop, orgWidth, orgHeight);
+        SampleSizePlanner.Plan plan =
+                SampleSizePlanner.plan(rect.width(), rect.height(), Bitmap.Config.ARGB_8888, 1, 16);
+        return cropBitmap(
+                context,
+                loadedImageUri,
+                fittedCrop,
+                orgWidth,
+                orgHeight,
+                plan.sampleSize);
     }
 
     /**
@@ -152,16 +137,23 @@ public final class BitmapUtil {
 
             // Calculate inSampleSize
             options.inSampleSize =
-                    Math.max(
+                    SampleSizePlanner.plan(
+                            options.outWidth,
+                            options.outHeight,
+                            options.inPreferredConfig,
                             calculateInSampleSizeByReqestedSize(
                                     options.outWidth, options.outHeight, reqWidth, reqHeight),
-                            calculateInSampleSizeByMaxTextureSize(options.outWidth, options.outHeight));
+                            SampleSizePlanner.MAX_SAMPLE_SIZE,
+                            getMaxTextureSizeCached(),
+                            SampleSizePlanner.availableBitmapMemory()).sampleSize;
 
             // Decode bitmap with inSampleSize set
             Bitmap bitmap = decodeImage(resolver, uri, options);
 
             return new BitmapSampled(bitmap, options.inSampleSize);
 
+        } catch (SampleSizePlanner.NoFitException e) {
+            throw e;
         } catch (Exception e) {
             throw new RuntimeException(
                     "Failed to load sampled bitmap: " + uri + "\r\n" + e.getMessage(), e);
@@ -187,10 +179,46 @@ public final class BitmapUtil {
             Uri uri,
             Bitmap.CompressFormat compressFormat,
             int compressQuality)
-            throws FileNotFoundException {
+            throws IOException {
+        writeBitmapToUri(context, bitmap, uri, compressFormat, compressQuality,
+                Collections.<byte[]>emptyList(), null, null);
+    }
+
+    /**
+     * Write the given bitmap to the given uri using the given compression, adding the given APPn
+     * segments to the JPEG header while it is written, or the given chunk to a PNG or WebP.
+     *
+     * @param filter drops segments the encoder writes itself, null to keep them all
+     * @param chunk  complete chunk for a PNG ({@link PngChunkInjector#chunk}) or WebP
+     *               ({@link WebpChunkInserter#chunk}) output, null for none
+     */
+    public static void writeBitmapToUri(
+            Context context,
+            Bitmap bitmap,
+            Uri uri,
+            Bitmap.CompressFormat compressFormat,
+            int compressQuality,
+            List<byte[]> jpegSegments,
+            JpegSegmentInjector.SegmentFilter filter,
+            byte[] chunk)
+            throws IOException {
         OutputStream outputStream = null;
         try {
             outputStream = context.getContentResolver().openOutputStream(uri);
+            if (compressFormat == Bitmap.CompressFormat.JPEG
+                    && (!jpegSegments.isEmpty() || filter != null)) {
+                outputStream = new JpegSegmentInjector(outputStream, jpegSegments, filter);
+            } else if (compressFormat == Bitmap.CompressFormat.PNG && chunk != null) {
+                outputStream = new PngChunkInjector(outputStream,
+                        Collections.singletonList(chunk));
+            } else if (compressFormat.name().startsWith("WEBP") && chunk != null) {
+                // the RIFF header needs the final size, encode to memory first. By name, the
+                // WEBP_LOSSY and WEBP_LOSSLESS constants are missing before API 30
+                ByteArrayOutputStream webp = new ByteArrayOutputStream();
+                bitmap.compress(compressFormat, compressQuality, webp);
+                outputStream.write(WebpChunkInserter.insert(webp.toByteArray(), chunk));
+                return;
+            }
             bitmap.compress(compressFormat, compressQuality, outputStream);
         } finally {
             closeSafe(outputStream);
@@ -232,47 +260,158 @@ public final class BitmapUtil {
         return ret;
     }
 
-    public static Bitmap addWatermarkToBitmap(Bitmap src, String text, float ratio, String location, int offset, int textSize, int textColor) {
-        int width = src.getWidth();
-        int height = src.getHeight();
-
-        Bitmap ret = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    /**
+     * A copy of the bitmap, in its color space, with the stamp drawn on it.
+     */
+    static Bitmap addWatermarkToBitmap(Bitmap src, WatermarkRenderPlan.Stamp stamp) {
+        Bitmap ret = createBitmap(src.getWidth(), src.getHeight(), src);
         Canvas canvas = new Canvas(ret);
         canvas.drawBitmap(src, 0, 0, null);
+        stamp.draw(canvas);
+        return ret;
+    }
 
-        Paint paint = new Paint();
-        paint.setTextSize(textSize);
-        paint.setColor(textColor);
+    /**
+     * Crop, rotate and add the watermark in one pass.<br>
+     * Only the crop region is decoded (with {@link BitmapRegionDecoder}, or a sampled full decode
+     * if the format does not support regions), then a single Matrix rotates and places it into
+     * the output bitmap and the watermark is drawn on that same bitmap, so the cost follows the
+     * crop area rather than the source size.
+     *
+     * @param bounds        bounds from {@link #decodeImageForOption(ImageSource)}
+     * @param orientedCrop  the crop relative to the image as displayed after the EXIF rotation
+     * @param degrees       clockwise rotation to apply, see {@link #exifOrientationToDegrees(int)}
+     * @param values        watermark of this image, laid out at the output size
+     */
+    static BitmapSampled cropRotateAndWatermark(
+            ImageSource source,
+            BitmapFactory.Options bounds,
+            RectF orientedCrop,
+            int degrees,
+            WatermarkRenderPlan plan,
+            WatermarkRenderPlan.Values values)
+            throws IOException {
+        final Uri uri = source.getUri();
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+            throw new RuntimeException("File is not a picture: " + uri);
+        }
 
-        Rect bounds = new Rect();
-        paint.getTextBounds(text, 0, text.length(), bounds);
+        // map the crop from the displayed orientation back to the stored pixels
+        Matrix orient = orientationMatrix(bounds.outWidth, bounds.outHeight, degrees);
+        Matrix inverse = new Matrix();
+        orient.invert(inverse);
+        boolean swapped = degrees == 90 || degrees == 270;
+        int orientedWidth = swapped ? bounds.outHeight : bounds.outWidth;
+        int orientedHeight = swapped ? bounds.outWidth : bounds.outHeight;
+        RectF srcCrop = new RectF(
+                orientedCrop.left * orientedWidth,
+                orientedCrop.top * orientedHeight,
+                orientedCrop.right * orientedWidth,
+                orientedCrop.bottom * orientedHeight);
+        inverse.mapRect(srcCrop);
+        Rect rect = new Rect();
+        srcCrop.round(rect);
+        if (!rect.intersect(0, 0, bounds.outWidth, bounds.outHeight) || rect.isEmpty()) {
+            throw new IllegalArgumentException("Crop " + orientedCrop + " is outside of " + uri);
+        }
 
-        float scale = (width * ratio) / bounds.width();
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        options.inSampleSize =
+                SampleSizePlanner.plan(
+                        rect.width(),
+                        rect.height(),
+                        options.inPreferredConfig,
+                        1,
+                        SampleSizePlanner.MAX_SAMPLE_SIZE).sampleSize;
+        final int sampleSize = options.inSampleSize;
+
+        // region decode, the matrix starts at the region origin
         Matrix matrix = new Matrix();
-        matrix.postScale(scale, scale);
-
-        switch (location) {
-            case "topLeft":
-                canvas.drawText(text, offset, offset + bounds.height(), paint);
-                break;
-            case "topRight":
-                canvas.drawText(text, width - bounds.width() - offset, offset, paint);
-                break;
-            case "bottomLeft":
-                canvas.drawText(text, offset, height - bounds.height() - offset, paint);
-                break;
-            case "bottomRight":
-                canvas.drawText(text, width - bounds.width() - offset, height - offset, paint);
-                break;
+        Bitmap region = null;
+        InputStream stream = null;
+        BitmapRegionDecoder decoder = null;
+        try {
+            stream = source.open();
+            decoder = BitmapRegionDecoder.newInstance(stream, false);
+            region = decoder.decodeRegion(rect, options);
+        } catch (IOException | RuntimeException ignored) {
+        } finally {
+            closeSafe(stream);
+            if (decoder != null) {
+                decoder.recycle();
+            }
+        }
+        if (region == null) {
+            // region decoding is not supported for this format, decode it all and let the matrix
+            // skip to the crop
+            BitmapFactory.Options full = new BitmapFactory.Options();
+            full.outWidth = bounds.outWidth;
+            full.outHeight = bounds.outHeight;
+            full.inPreferredConfig = options.inPreferredConfig;
+            full.inSampleSize = sampleSize;
+            region = decodeImage(source, full);
+            float scale = full.inSampleSize / (float) sampleSize;
+            matrix.postTranslate(-rect.left / (float) full.inSampleSize,
+                    -rect.top / (float) full.inSampleSize);
+            matrix.postScale(scale, scale);
         }
 
-        canvas.save();
+        int outWidth = Math.max(1, (swapped ? rect.height() : rect.width()) / sampleSize);
+        int outHeight = Math.max(1, (swapped ? rect.width() : rect.height()) / sampleSize);
+        matrix.postConcat(orientationMatrix(
+                swapped ? outHeight : outWidth, swapped ? outWidth : outHeight, degrees));
 
-        canvas.restore();
+        Bitmap result = createBitmap(outWidth, outHeight, region);
+        Canvas canvas = new Canvas(result);
+        canvas.drawBitmap(region, matrix, new Paint(Paint.FILTER_BITMAP_FLAG));
+        region.recycle();
 
-        return ret;
+        plan.layout(values, outWidth, outHeight).draw(canvas);
+
+        return new BitmapSampled(result, sampleSize);
     }
 
+    /**
+     * A mutable ARGB_8888 bitmap in the color space of {@code like}, so the pixels still match the
+     * ICC profile copied from the source.
+     */
+    static Bitmap createBitmap(int width, int height, Bitmap like) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && like.getColorSpace() != null) {
+            return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888, true,
+                    like.getColorSpace());
+        }
+        return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * Clockwise rotation in degrees for an EXIF orientation, 0 for the orientations that only flip.
+     */
+    static int exifOrientationToDegrees(int orientation) {
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                return 90;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                return 180;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                return 270;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Matrix rotating a {@code width} x {@code height} bitmap clockwise by {@code degrees} and moving
+     * the result back to the origin.
+     */
+    static Matrix orientationMatrix(int width, int height, int degrees) {
+        Matrix matrix = new Matrix();
+        matrix.postRotate(degrees);
+        RectF mapped = new RectF(0, 0, width, height);
+        matrix.mapRect(mapped);
+        matrix.postTranslate(-mapped.left, -mapped.top);
+        return matrix;
+    }
 
     // region: Private methods
 
@@ -308,6 +447,9 @@ public final class BitmapUtil {
                     decodeSampledBitmapRegion(context, loadedImageUri, rect, width, height, sampleMulti);
             result = bitmapSampled.bitmap;
             sampleSize = bitmapSampled.sampleSize;
+        } catch (SampleSizePlanner.NoFitException e) {
+            // a full decode would need even more memory, fail fast
+            throw e;
         } catch (Exception ignored) {
         }
 
@@ -343,13 +485,15 @@ public final class BitmapUtil {
         Bitmap result = null;
         int sampleSize;
         try {
-            BitmapFactory.Options options = new BitmapFactory.Options();
+            ContentResolver resolver = context.getContentResolver();
+            BitmapFactory.Options options = decodeImageForOption(resolver, loadedImageUri);
             options.inSampleSize =
-                    sampleSize =
-                            sampleMulti
-                                    * calculateInSampleSizeByReqestedSize(rect.width(), rect.height(), width, height);
+                    sampleMulti
+                            * calculateInSampleSizeByReqestedSize(rect.width(), rect.height(), width, height);
 
-            Bitmap fullBitmap = decodeImage(context.getContentResolver(), loadedImageUri, options);
+            // decodeImage may raise the sampling so the full image fits in the heap
+            Bitmap fullBitmap = decodeImage(resolver, loadedImageUri, options);
+            sampleSize = options.inSampleSize;
             if (fullBitmap != null) {
                 try {
                     // adjust crop points by the sampling because the image is smaller
@@ -360,10 +504,7 @@ public final class BitmapUtil {
                     }
                 }
             }
-        } catch (OutOfMemoryError e) {
-            if (result != null) {
-                result.recycle();
-            }
+        } catch (SampleSizePlanner.NoFitException e) {
             throw e;
         } catch (Exception e) {
             throw new RuntimeException(
@@ -378,9 +519,22 @@ public final class BitmapUtil {
      */
     public static BitmapFactory.Options decodeImageForOption(ContentResolver resolver, Uri uri)
             throws FileNotFoundException {
+        try {
+            return decodeImageForOption(ImageSource.forUri(resolver, uri));
+        } catch (FileNotFoundException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read image: " + uri, e);
+        }
+    }
+
+    /**
+     * Decode image from source using "inJustDecodeBounds" to get the image dimensions.
+     */
+    static BitmapFactory.Options decodeImageForOption(ImageSource source) throws IOException {
         InputStream stream = null;
         try {
-            stream = resolver.openInputStream(uri);
+            stream = source.open();
             BitmapFactory.Options options = new BitmapFactory.Options();
             options.inJustDecodeBounds = true;
             BitmapFactory.decodeStream(stream, EMPTY_RECT, options);
@@ -392,24 +546,74 @@ public final class BitmapUtil {
     }
 
     /**
-     * Decode image from uri using given "inSampleSize", but if failed due to out-of-memory then raise
-     * the inSampleSize until success.
+     * Decode image from uri using given "inSampleSize", raised up front if needed so the bitmap fits
+     * in the available heap.
+     *
+     * @param options bounds from {@link #decodeImageForOption}, if they are unknown the image is
+     *                decoded with the given "inSampleSize" as is
+     * @throws SampleSizePlanner.NoFitException if the image does not fit even at sample size 512
      */
     public static Bitmap decodeImage(
             ContentResolver resolver, Uri uri, BitmapFactory.Options options)
             throws FileNotFoundException {
-        do {
-            InputStream stream = null;
-            try {
-                stream = resolver.openInputStream(uri);
-                return BitmapFactory.decodeStream(stream, EMPTY_RECT, options);
-            } catch (OutOfMemoryError e) {
-                options.inSampleSize *= 2;
-            } finally {
-                closeSafe(stream);
+        try {
+            return decodeImage(ImageSource.forUri(resolver, uri), options);
+        } catch (FileNotFoundException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read image: " + uri, e);
+        }
+    }
+
+    /**
+     * Same as {@link #decodeImage(ContentResolver, Uri, BitmapFactory.Options)} from a source. With
+     * "inMutable" set the image is decoded into a {@link BitmapPool} bitmap when one is big enough.
+     */
+    static Bitmap decodeImage(ImageSource source, BitmapFactory.Options options)
+            throws IOException {
+        if (options.outWidth > 0 && options.outHeight > 0) {
+            options.inSampleSize =
+                    SampleSizePlanner.plan(
+                            options.outWidth,
+                            options.outHeight,
+                            options.inPreferredConfig,
+                            options.inSampleSize,
+                            SampleSizePlanner.MAX_SAMPLE_SIZE).sampleSize;
+            if (options.inMutable && options.inBitmap == null) {
+                // decode into a bitmap left by an earlier image if one is big enough
+                final int sampleSize = options.inSampleSize;
+                options.inBitmap = BitmapPool.take(
+                        (options.outWidth + sampleSize - 1) / sampleSize,
+                        (options.outHeight + sampleSize - 1) / sampleSize,
+                        options.inPreferredConfig);
+            }
+        }
+        try {
+            return decodeStream(source, options);
+        } catch (IllegalArgumentException e) {
+            if (options.inBitmap == null) {
+                throw e;
+            }
+            // the decoder could not reuse it after all
+            options.inBitmap.recycle();
+            options.inBitmap = null;
+            return decodeStream(source, options);
+        }
+    }
+
+    private static Bitmap decodeStream(ImageSource source, BitmapFactory.Options options)
+            throws IOException {
+        InputStream stream = null;
+        try {
+            stream = source.open();
+            Bitmap bitmap = BitmapFactory.decodeStream(stream, EMPTY_RECT, options);
+            if (bitmap == null) {
+                throw new RuntimeException("Failed to decode image: " + source.getUri());
             }
-        } while (options.inSampleSize <= 512);
-        throw new RuntimeException("Failed to decode image: " + uri);
+            return bitmap;
+        } finally {
+            closeSafe(stream);
+        }
     }
 
     /**
@@ -425,19 +629,21 @@ public final class BitmapUtil {
         try {
             BitmapFactory.Options options = new BitmapFactory.Options();
             options.inSampleSize =
-                    sampleMulti
-                            * calculateInSampleSizeByReqestedSize(
-                            rect.width(), rect.height(), reqWidth, reqHeight);
+                    SampleSizePlanner.plan(
+                            rect.width(),
+                            rect.height(),
+                            options.inPreferredConfig,
+                            sampleMulti
+                                    * calculateInSampleSizeByReqestedSize(
+                                    rect.width(), rect.height(), reqWidth, reqHeight),
+                            SampleSizePlanner.MAX_SAMPLE_SIZE).sampleSize;
 
-            stream = context.getContentResolver().openInputStream(uri);
+            // archive entries have no provider behind them
+            stream = ImageSource.forUri(context.getContentResolver(), uri).open();
             decoder = BitmapRegionDecoder.newInstance(stream, false);
-            do {
-                try {
-                    return new BitmapSampled(decoder.decodeRegion(rect, options), options.inSampleSize);
-                } catch (OutOfMemoryError e) {
-                    options.inSampleSize *= 2;
-                }
-            } while (options.inSampleSize <= 512);
+            return new BitmapSampled(decoder.decodeRegion(rect, options), options.inSampleSize);
+        } catch (SampleSizePlanner.NoFitException e) {
+            throw e;
         } catch (Exception e) {
             throw new RuntimeException(
                     "Failed to load sampled bitmap: " + uri + "\r\n" + e.getMessage(), e);
@@ -447,7 +653,6 @@ public final class BitmapUtil {
                 decoder.recycle();
             }
         }
-        return new BitmapSampled(null, 1);
     }
 
 
@@ -467,28 +672,30 @@ public final class BitmapUtil {
     }
 
     /**
-     * Calculate the largest inSampleSize value that is a power of 2 and keeps both height and width
-     * smaller than max texture size allowed for the device.
+     * Get the max texture size from the {@link CapabilityProfile}, querying EGL only if the profile
+     * is not ready yet.
      */
-    private static int calculateInSampleSizeByMaxTextureSize(int width, int height) {
-        int inSampleSize = 1;
+    private static int getMaxTextureSizeCached() {
         if (mMaxTextureSize == 0) {
-            mMaxTextureSize = getMaxTextureSize();
-        }
-        if (mMaxTextureSize > 0) {
-            while ((height / inSampleSize) > mMaxTextureSize
-                    || (width / inSampleSize) > mMaxTextureSize) {
-                inSampleSize *= 2;
+            CapabilityProfile profile = CapabilityProfile.get();
+            if (profile != null && profile.maxTextureSize > 0) {
+                mMaxTextureSize = profile.maxTextureSize;
+            } else {
+                synchronized (BitmapUtil.class) {
+                    if (mMaxTextureSize == 0) {
+                        mMaxTextureSize = getMaxTextureSize();
+                    }
+                }
             }
         }
-        return inSampleSize;
+        return mMaxTextureSize;
     }
 
     /**
      * Get the max size of bitmap allowed to be rendered on the device.<br>
      * http://stackoverflow.com/questions/7428996/hw-accelerated-activity-how-to-get-opengl-texture-size-limit.
      */
-    private static int getMaxTextureSize() {
+    static int getMaxTextureSize() {
         // Safe minimum default size
         final int IMAGE_MAX_BITMAP_DIMENSION = 2048;
 
@@ -541,7 +748,7 @@ public final class BitmapUtil {
      *
      * @param closeable the closable object to close
      */
-    private static void closeSafe(Closeable closeable) {
+    static void closeSafe(Closeable closeable) {
         if (closeable != null) {
             try {
                 closeable.close();
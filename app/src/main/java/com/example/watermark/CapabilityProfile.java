@@ -0,0 +1,169 @@
+package com.example.watermark;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.LinearGradient;
+import android.graphics.Paint;
+import android.graphics.Shader;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+import java.io.ByteArrayOutputStream;
+
+/**
+ * What this device can do: max texture size, core count, memory class and measured decode/encode
+ * throughput. Measured once on a background thread, persisted, and loaded on the io pool at
+ * startup so no decode has to query EGL or guess the device speed. Until it is in, the consumers
+ * use their static defaults.
+ */
+final class CapabilityProfile {
+  private final static String TAG = "CapabilityProfile";
+
+  private static final String PREFS_NAME = "capability_profile";
+  private static final String KEY_FINGERPRINT = "fingerprint";
+  private static final String KEY_MAX_TEXTURE_SIZE = "max_texture_size";
+  private static final String KEY_CORE_COUNT = "core_count";
+  private static final String KEY_MEMORY_CLASS = "memory_class";
+  private static final String KEY_DECODE_MP_PER_SECOND = "decode_mp_per_second";
+  private static final String KEY_ENCODE_MP_PER_SECOND = "encode_mp_per_second";
+
+  /**
+   * Side of the synthetic image used to measure throughput.
+   */
+  private static final int BENCHMARK_SIZE = 1024;
+
+  private static volatile CapabilityProfile current;
+
+  final int maxTextureSize;
+  final int coreCount;
+  final int memoryClass;
+  final float decodeMegapixelsPerSecond;
+  final float encodeMegapixelsPerSecond;
+
+  CapabilityProfile(
+      int maxTextureSize,
+      int coreCount,
+      int memoryClass,
+      float decodeMegapixelsPerSecond,
+      float encodeMegapixelsPerSecond
+  ) {
+    this.maxTextureSize = maxTextureSize;
+    this.coreCount = coreCount;
+    this.memoryClass = memoryClass;
+    this.decodeMegapixelsPerSecond = decodeMegapixelsPerSecond;
+    this.encodeMegapixelsPerSecond = encodeMegapixelsPerSecond;
+  }
+
+  /**
+   * The loaded profile, or null while it is still being loaded or measured.
+   */
+  static CapabilityProfile get() {
+    return current;
+  }
+
+  /**
+   * On the io pool, load the persisted profile, or measure it if there is none for this build of
+   * the system yet. Off the main thread, the preferences are a disk read on a cold start.
+   */
+  static void init(Context context) {
+    final Context appContext = context.getApplicationContext();
+    WorkerPools.io().execute(() -> {
+      CapabilityProfile loaded = load(appContext);
+      if (loaded != null) {
+        current = loaded;
+        Log.d(TAG, "Loaded " + loaded);
+        return;
+      }
+      CapabilityProfile measured = measure(appContext);
+      save(appContext, measured);
+      current = measured;
+      Log.d(TAG, "Measured " + measured);
+    });
+  }
+
+  private static CapabilityProfile load(Context context) {
+    SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    if (!Build.FINGERPRINT.equals(prefs.getString(KEY_FINGERPRINT, null))) {
+      return null;
+    }
+    return new CapabilityProfile(
+        prefs.getInt(KEY_MAX_TEXTURE_SIZE, 0),
+        prefs.getInt(KEY_CORE_COUNT, WorkerPools.CORE_COUNT),
+        prefs.getInt(KEY_MEMORY_CLASS, 0),
+        prefs.getFloat(KEY_DECODE_MP_PER_SECOND, 0),
+        prefs.getFloat(KEY_ENCODE_MP_PER_SECOND, 0));
+  }
+
+  private static void save(Context context, CapabilityProfile profile) {
+    context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+        .edit()
+        .putString(KEY_FINGERPRINT, Build.FINGERPRINT)
+        .putInt(KEY_MAX_TEXTURE_SIZE, profile.maxTextureSize)
+        .putInt(KEY_CORE_COUNT, profile.coreCount)
+        .putInt(KEY_MEMORY_CLASS, profile.memoryClass)
+        .putFloat(KEY_DECODE_MP_PER_SECOND, profile.decodeMegapixelsPerSecond)
+        .putFloat(KEY_ENCODE_MP_PER_SECOND, profile.encodeMegapixelsPerSecond)
+        .apply();
+  }
+
+  private static CapabilityProfile measure(Context context) {
+    ActivityManager activityManager =
+        (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+    int memoryClass = activityManager != null ? activityManager.getMemoryClass() : 0;
+
+    Bitmap bitmap =
+        Bitmap.createBitmap(BENCHMARK_SIZE, BENCHMARK_SIZE, Bitmap.Config.ARGB_8888);
+    Paint paint = new Paint();
+    paint.setShader(new LinearGradient(0, 0, BENCHMARK_SIZE, BENCHMARK_SIZE,
+        new int[] { 0xFF3F51B5, 0xFFFFC107, 0xFF4CAF50 }, null, Shader.TileMode.MIRROR));
+    Canvas canvas = new Canvas(bitmap);
+    canvas.drawRect(0, 0, BENCHMARK_SIZE, BENCHMARK_SIZE, paint);
+
+    final float megapixels = BENCHMARK_SIZE * BENCHMARK_SIZE / 1_000_000f;
+    long bestEncodeNanos = Long.MAX_VALUE;
+    long bestDecodeNanos = Long.MAX_VALUE;
+    // the first round warms up the codecs, keep the best of the rest
+    for (int i = 0; i < 3; i++) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      long start = SystemClock.elapsedRealtimeNanos();
+      bitmap.compress(Bitmap.CompressFormat.JPEG, 100, out);
+      long encoded = SystemClock.elapsedRealtimeNanos();
+      byte[] bytes = out.toByteArray();
+      Bitmap decoded = BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
+      long decodedTime = SystemClock.elapsedRealtimeNanos();
+      if (decoded != null) {
+        decoded.recycle();
+      }
+      if (i > 0) {
+        bestEncodeNanos = Math.min(bestEncodeNanos, encoded - start);
+        bestDecodeNanos = Math.min(bestDecodeNanos, decodedTime - encoded);
+      }
+    }
+    bitmap.recycle();
+
+    return new CapabilityProfile(
+        BitmapUtil.getMaxTextureSize(),
+        WorkerPools.CORE_COUNT,
+        memoryClass,
+        megapixels * 1e9f / Math.max(1, bestDecodeNanos),
+        megapixels * 1e9f / Math.max(1, bestEncodeNanos));
+  }
+
+  @Override public String toString() {
+    return "CapabilityProfile{maxTextureSize="
+        + maxTextureSize
+        + ", coreCount="
+        + coreCount
+        + ", memoryClass="
+        + memoryClass
+        + ", decodeMP/s="
+        + decodeMegapixelsPerSecond
+        + ", encodeMP/s="
+        + encodeMegapixelsPerSecond
+        + "}";
+  }
+}
@@ -0,0 +1,266 @@
+package com.example.watermark;
+
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+import android.util.Log;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Picks the output format of each image of a batch by its {@link OutputFormatPolicy}. When the
+ * policy asks for profiling, the first {@link #SAMPLE_IMAGES} images of each source type are also
+ * encoded in every candidate format, a center crop of at most {@link #TRIAL_SIDE} pixels square
+ * into a byte counter, and that source type then uses the fastest candidate that meets the size
+ * goal. Every image of the type, the sampled ones included, waits for that choice so the whole
+ * type gets one format. One per batch, shared by the decode threads.
+ */
+final class EncodeProfiler {
+  private final static String TAG = "EncodeProfiler";
+
+  static final int SAMPLE_IMAGES = 3;
+
+  /**
+   * Side of the crop the candidates are encoded on. Cropped rather than scaled so the detail per
+   * pixel, which decides the size, stays that of the image.
+   */
+  private static final int TRIAL_SIDE = 1024;
+
+  final OutputFormatPolicy policy;
+
+  // guarded by itself
+  private final Map<String, Samples> samples = new HashMap<>();
+
+  EncodeProfiler(OutputFormatPolicy policy) {
+    this.policy = policy;
+  }
+
+  /**
+   * The format to encode {@code bitmap}, decoded from a source of the given MIME type, in. Runs the
+   * trial encodes on the calling thread if the image is part of the sample, and blocks until the
+   * format of its source type is chosen.
+   */
+  OutputFormat choose(String sourceMimeType, Bitmap bitmap) {
+    OutputFormat format =
+        sourceMimeType != null ? policy.sourceFormats.get(sourceMimeType) : null;
+    if (format == null) {
+      format = policy.format;
+    }
+    if (format != null) {
+      return format.orSupported();
+    }
+    OutputFormat sourceFormat = OutputFormat.forMimeType(sourceMimeType);
+    if (!policy.profile) {
+      return sourceFormat != null ? sourceFormat.orSupported() : OutputFormat.JPEG;
+    }
+
+    Samples typeSamples;
+    synchronized (samples) {
+      String key = String.valueOf(sourceMimeType);
+      typeSamples = samples.get(key);
+      if (typeSamples == null) {
+        typeSamples = new Samples(key, sourceFormat);
+        samples.put(key, typeSamples);
+      }
+    }
+    if (typeSamples.startTrial()) {
+      trial(typeSamples, bitmap);
+    }
+    return typeSamples.await();
+  }
+
+  private void trial(Samples typeSamples, Bitmap bitmap) {
+    final int width = Math.min(TRIAL_SIDE, bitmap.getWidth());
+    final int height = Math.min(TRIAL_SIDE, bitmap.getHeight());
+    final int count = typeSamples.candidates.size();
+    long[] nanos = new long[count];
+    long[] bytes = new long[count];
+    boolean succeeded = false;
+    Bitmap crop = null;
+    try {
+      crop = Bitmap.createBitmap(bitmap, (bitmap.getWidth() - width) / 2,
+          (bitmap.getHeight() - height) / 2, width, height);
+      for (int i = 0; i < count; i++) {
+        OutputFormat candidate = typeSamples.candidates.get(i);
+        Bitmap.CompressFormat compressFormat = candidate.compressFormat();
+        int quality = candidate.quality(policy.lossyQuality);
+        // untimed, the first encode in a format also pays for loading and setting up its encoder
+        crop.compress(compressFormat, quality, new CountingOutputStream());
+        CountingOutputStream out = new CountingOutputStream();
+        long start = SystemClock.elapsedRealtimeNanos();
+        crop.compress(compressFormat, quality, out);
+        nanos[i] = SystemClock.elapsedRealtimeNanos() - start;
+        bytes[i] = out.count;
+      }
+      succeeded = true;
+    } catch (RuntimeException | OutOfMemoryError e) {
+      Log.w(TAG, "Trial encode of a " + typeSamples.sourceType + " image failed", e);
+    } finally {
+      // a crop of the whole bitmap may be the bitmap itself
+      if (crop != null && crop != bitmap) {
+        crop.recycle();
+      }
+      // always, the other images of the type wait for it
+      if (succeeded) {
+        typeSamples.finishTrial(nanos, bytes, (long) width * height);
+      } else {
+        typeSamples.finishTrial(null, null, 0);
+      }
+    }
+  }
+
+  /**
+   * Trial encodes of one source type.
+   */
+  private final class Samples {
+    final String sourceType;
+    final List<OutputFormat> candidates = new ArrayList<>();
+    final OutputFormat fallback;
+
+    // guarded by this
+    private final long[] nanos;
+    private final long[] bytes;
+    private long pixels;
+    private int started;
+    private int running;
+    private int finished;
+    private OutputFormat chosen;
+
+    Samples(String sourceType, OutputFormat sourceFormat) {
+      this.sourceType = sourceType;
+      boolean losslessSource = sourceFormat != null && sourceFormat.lossless;
+      if (!losslessSource || !policy.keepLossless) {
+        addIfSupported(OutputFormat.JPEG);
+        addIfSupported(OutputFormat.WEBP_LOSSY);
+      }
+      if (losslessSource) {
+        // a photo is not worth encoding lossless, a screenshot may be
+        addIfSupported(OutputFormat.PNG);
+        addIfSupported(OutputFormat.WEBP_LOSSLESS);
+      }
+      fallback = losslessSource ? OutputFormat.PNG : OutputFormat.JPEG;
+      nanos = new long[candidates.size()];
+      bytes = new long[candidates.size()];
+      if (candidates.size() == 1) {
+        // nothing to compare
+        chosen = candidates.get(0);
+        started = SAMPLE_IMAGES;
+      }
+    }
+
+    private void addIfSupported(OutputFormat format) {
+      if (format.isSupported()) {
+        candidates.add(format);
+      }
+    }
+
+    synchronized boolean startTrial() {
+      if (chosen != null || started >= SAMPLE_IMAGES) {
+        return false;
+      }
+      started++;
+      running++;
+      return true;
+    }
+
+    /**
+     * Chooses once the whole sample is encoded, or earlier when no other trial is running: the
+     * batch may hold fewer images of the type than the sample, and they are all waiting then.
+     *
+     * @param trialNanos null if the trial failed
+     */
+    synchronized void finishTrial(long[] trialNanos, long[] trialBytes, long trialPixels) {
+      if (trialNanos != null) {
+        for (int i = 0; i < nanos.length; i++) {
+          nanos[i] += trialNanos[i];
+          bytes[i] += trialBytes[i];
+        }
+        pixels += trialPixels;
+      }
+      running--;
+      if (++finished == SAMPLE_IMAGES || running == 0) {
+        chosen = pixels > 0 ? bestLocked() : fallback;
+        Log.i(TAG, sourceType + " sources encode as " + chosen + " after " + finished
+            + " trials, " + summaryLocked());
+        notifyAll();
+      }
+    }
+
+    /**
+     * The chosen format, waiting for the trials running. Only called after a trial was started,
+     * by this thread or another, so the wait ends.
+     */
+    synchronized OutputFormat await() {
+      boolean interrupted = false;
+      while (chosen == null) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          // the trials are short, finish waiting for them
+          interrupted = true;
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+      return chosen;
+    }
+
+    /**
+     * The fastest candidate within the size goal, the smallest if none is.
+     */
+    private OutputFormat bestLocked() {
+      final long goal = policy.maxBytesPerMegapixel;
+      int fastest = -1;
+      int smallest = 0;
+      for (int i = 0; i < candidates.size(); i++) {
+        if ((goal == 0 || bytesPerMegapixel(i) <= goal)
+            && (fastest < 0 || nanos[i] < nanos[fastest])) {
+          fastest = i;
+        }
+        if (bytes[i] < bytes[smallest]) {
+          smallest = i;
+        }
+      }
+      return candidates.get(fastest >= 0 ? fastest : smallest);
+    }
+
+    private long bytesPerMegapixel(int candidate) {
+      return bytes[candidate] * 1_000_000 / Math.max(1, pixels);
+    }
+
+    private String summaryLocked() {
+      StringBuilder builder = new StringBuilder();
+      for (int i = 0; i < candidates.size(); i++) {
+        if (i > 0) {
+          builder.append(", ");
+        }
+        builder.append(candidates.get(i))
+            .append(' ')
+            // ns per pixel is ms per megapixel
+            .append(nanos[i] / Math.max(1, pixels))
+            .append("ms/MP ")
+            .append(bytesPerMegapixel(i) / 1024)
+            .append("KB/MP");
+      }
+      return builder.toString();
+    }
+  }
+
+  /**
+   * Counts what the encoder writes and drops it.
+   */
+  private static final class CountingOutputStream extends OutputStream {
+    long count;
+
+    @Override public void write(int b) {
+      count++;
+    }
+
+    @Override public void write(byte[] b, int off, int len) {
+      count += len;
+    }
+  }
+}
@@ -0,0 +1,110 @@
+package com.example.watermark;
+
+import android.net.Uri;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Thread-safe image list shared by the directory scan, the batch runner and the UI.<br>
+ * Items are stored in fixed size pages. A {@link #snapshot()} only copies the page table, and a
+ * page is copied before one of its items is replaced, so snapshots are immutable and can be diffed
+ * off the main thread while the scan keeps appending.
+ */
+final class ImageListModel {
+  private static final int PAGE_SIZE = 256;
+
+  private static final ImageListModel INSTANCE = new ImageListModel();
+
+  // guarded by this
+  private final List<WatermarkImageBean[]> pages = new ArrayList<>();
+  private final Map<Uri, Integer> positions = new HashMap<>();
+  private int size;
+
+  private ImageListModel() {
+  }
+
+  /**
+   * Process wide, so the list survives the activity being recreated.
+   */
+  static ImageListModel get() {
+    return INSTANCE;
+  }
+
+  /**
+   * Append the images that are not in the list yet.
+   *
+   * @return the number of images added
+   */
+  synchronized int addAll(Collection<Uri> uris) {
+    int added = 0;
+    for (Uri uri : uris) {
+      if (positions.containsKey(uri)) {
+        continue;
+      }
+      int page = size / PAGE_SIZE;
+      if (page == pages.size()) {
+        pages.add(new WatermarkImageBean[PAGE_SIZE]);
+      }
+      // slots past the size of older snapshots are never read by them, no copy needed
+      pages.get(page)[size % PAGE_SIZE] = new WatermarkImageBean(uri);
+      positions.put(uri, size);
+      size++;
+      added++;
+    }
+    return added;
+  }
+
+  /**
+   * Record the output of an image.
+   *
+   * @return false if the image is not in the list
+   */
+  synchronized boolean markWatermarked(Uri original, Uri watermarked) {
+    Integer position = positions.get(original);
+    if (position == null) {
+      return false;
+    }
+    int page = position / PAGE_SIZE;
+    WatermarkImageBean[] copy = Arrays.copyOf(pages.get(page), PAGE_SIZE);
+    copy[position % PAGE_SIZE] = copy[position % PAGE_SIZE].withWatermarked(watermarked);
+    pages.set(page, copy);
+    return true;
+  }
+
+  synchronized int size() {
+    return size;
+  }
+
+  synchronized Snapshot snapshot() {
+    return new Snapshot(pages.toArray(new WatermarkImageBean[0][]), size);
+  }
+
+  /**
+   * Immutable view of the list at one point in time.
+   */
+  static final class Snapshot extends AbstractList<WatermarkImageBean> {
+    private final WatermarkImageBean[][] pages;
+    private final int size;
+
+    Snapshot(WatermarkImageBean[][] pages, int size) {
+      this.pages = pages;
+      this.size = size;
+    }
+
+    @Override public WatermarkImageBean get(int index) {
+      if (index < 0 || index >= size) {
+        throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+      }
+      return pages[index / PAGE_SIZE][index % PAGE_SIZE];
+    }
+
+    @Override public int size() {
+      return size;
+    }
+  }
+}
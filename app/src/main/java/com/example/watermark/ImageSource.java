@@ -0,0 +1,45 @@
+package com.example.watermark;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The bytes of one source image, opened again for every read (bounds, Exif, pixels). Sources read
+ * ahead by {@link SourcePrefetcher} are served from memory, entries of a {@link ZipArchive} from the
+ * archive, the others straight from the content resolver.
+ */
+interface ImageSource {
+
+  Uri getUri();
+
+  /**
+   * A new stream positioned at the start of the image, the caller closes it.
+   */
+  InputStream open() throws IOException;
+
+  static ImageSource forUri(final ContentResolver resolver, final Uri uri) {
+    if (ZipArchive.isEntry(uri)) {
+      return ZipArchive.source(resolver, uri);
+    }
+    return new ImageSource() {
+      @Override public Uri getUri() {
+        return uri;
+      }
+
+      @Override public InputStream open() throws FileNotFoundException {
+        InputStream stream = resolver.openInputStream(uri);
+        if (stream == null) {
+          throw new FileNotFoundException("Cannot read " + uri);
+        }
+        return stream;
+      }
+
+      @Override public String toString() {
+        return uri.toString();
+      }
+    };
+  }
+}
@@ -0,0 +1,277 @@
+package com.example.watermark;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The Exif (APP1) and ICC profile (APP2) segments of a source JPEG, read from its header only and
+ * copied byte for byte into the output by {@link JpegSegmentInjector} while it is written, instead
+ * of rewriting the output afterwards with {@code ExifInterface.saveAttributes}.
+ */
+final class JpegMetadata {
+  static final JpegMetadata EMPTY = new JpegMetadata(null, Collections.<byte[]>emptyList());
+
+  private static final byte[] EXIF_IDENTIFIER = "Exif\0\0".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] ICC_IDENTIFIER =
+      "ICC_PROFILE\0".getBytes(StandardCharsets.US_ASCII);
+
+  private static final int TAG_ORIENTATION = 0x0112;
+  private static final int TAG_EXIF_IFD_POINTER = 0x8769;
+  private static final int TAG_GPS_IFD_POINTER = 0x8825;
+  private static final int TAG_INTEROPERABILITY_IFD_POINTER = 0xA005;
+  private static final int TAG_JPEG_INTERCHANGE_FORMAT = 0x0201;
+  private static final int TAG_JPEG_INTERCHANGE_FORMAT_LENGTH = 0x0202;
+  private static final int TAG_PIXEL_X_DIMENSION = 0xA002;
+  private static final int TAG_PIXEL_Y_DIMENSION = 0xA003;
+  private static final int TYPE_SHORT = 3;
+  private static final int TYPE_LONG = 4;
+
+  /**
+   * Bytes per value of the TIFF field types 1 to 12.
+   */
+  private static final int[] TYPE_SIZES = { 0, 1, 1, 2, 4, 8, 1, 1, 2, 4, 8, 4, 8 };
+
+  /**
+   * Payload of the APP1 Exif segment, null if the source has none.
+   */
+  private final byte[] exif;
+
+  /**
+   * Payloads of the APP2 ICC profile chunks, in order.
+   */
+  private final List<byte[]> iccProfile;
+
+  private JpegMetadata(byte[] exif, List<byte[]> iccProfile) {
+    this.exif = exif;
+    this.iccProfile = iccProfile;
+  }
+
+  /**
+   * Read the metadata segments from the start of a JPEG, stopping at the first segment that is not
+   * APPn. Returns {@link #EMPTY} for other formats. Does not close the stream.
+   */
+  static JpegMetadata read(InputStream stream) throws IOException {
+    DataInputStream in = new DataInputStream(stream);
+    try {
+      if (in.readUnsignedShort() != 0xFFD8) {
+        return EMPTY;
+      }
+      byte[] exif = null;
+      List<byte[]> iccProfile = new ArrayList<>();
+      while (true) {
+        int marker = in.readUnsignedShort();
+        if (marker < 0xFFE0 || marker > 0xFFEF) {
+          break;
+        }
+        int length = in.readUnsignedShort() - 2;
+        if (length < 0) {
+          break;
+        }
+        if ((marker == 0xFFE1 && exif == null) || marker == 0xFFE2) {
+          byte[] payload = new byte[length];
+          in.readFully(payload);
+          if (marker == 0xFFE1 && startsWith(payload, EXIF_IDENTIFIER)) {
+            exif = payload;
+          } else if (marker == 0xFFE2 && startsWith(payload, ICC_IDENTIFIER)) {
+            iccProfile.add(payload);
+          }
+        } else {
+          skipFully(in, length);
+        }
+      }
+      return new JpegMetadata(exif, iccProfile);
+    } catch (EOFException e) {
+      return EMPTY;
+    }
+  }
+
+  boolean isEmpty() {
+    return exif == null && iccProfile.isEmpty();
+  }
+
+  /**
+   * Complete segments to add to the output. The thumbnail in IFD1 is dropped, it shows the source
+   * without the watermark and in its stored orientation.
+   *
+   * @param resetOrientation true if the pixels were rotated, the orientation is then set to normal
+   * @param width            width of the output, written to PixelXDimension
+   * @param height           height of the output, written to PixelYDimension
+   */
+  List<byte[]> segments(boolean resetOrientation, int width, int height) {
+    List<byte[]> segments = new ArrayList<>(1 + iccProfile.size());
+    if (exif != null) {
+      byte[] payload = exif.clone();
+      try {
+        int length = patchExif(payload, resetOrientation, width, height);
+        if (length < payload.length) {
+          payload = Arrays.copyOf(payload, length);
+        }
+      } catch (IndexOutOfBoundsException ignored) {
+        // malformed offsets, copy it as is
+        payload = exif;
+      }
+      segments.add(JpegSegmentInjector.segment(0xE1, payload));
+    }
+    for (byte[] chunk : iccProfile) {
+      segments.add(JpegSegmentInjector.segment(0xE2, chunk));
+    }
+    return segments;
+  }
+
+  /**
+   * Drops the encoder's own segments of the kinds the source provides.
+   */
+  JpegSegmentInjector.SegmentFilter replacedSegmentsFilter() {
+    return (marker, payload) -> {
+      if (marker == 0xE1 && exif != null && startsWith(payload, EXIF_IDENTIFIER)) {
+        return false;
+      }
+      return !(marker == 0xE2 && !iccProfile.isEmpty() && startsWith(payload, ICC_IDENTIFIER));
+    };
+  }
+
+  /**
+   * Patch the Exif payload in place.
+   *
+   * @return the length of the patched payload, shorter if the thumbnail was cut off its end
+   */
+  private static int patchExif(byte[] payload, boolean resetOrientation, int width, int height) {
+    final int tiff = EXIF_IDENTIFIER.length;
+    final boolean littleEndian = payload[tiff] == 'I';
+    int ifd0 = tiff + readInt(payload, tiff + 4, littleEndian);
+    int exifIfd = -1;
+
+    int count = readShort(payload, ifd0, littleEndian);
+    for (int i = 0; i < count; i++) {
+      int entry = ifd0 + 2 + i * 12;
+      int tag = readShort(payload, entry, littleEndian);
+      if (tag == TAG_ORIENTATION && resetOrientation) {
+        writeShort(payload, entry + 8, 1, littleEndian);
+      } else if (tag == TAG_EXIF_IFD_POINTER) {
+        exifIfd = tiff + readInt(payload, entry + 8, littleEndian);
+      }
+    }
+
+    if (exifIfd >= 0) {
+      int exifCount = readShort(payload, exifIfd, littleEndian);
+      for (int i = 0; i < exifCount; i++) {
+        int entry = exifIfd + 2 + i * 12;
+        int tag = readShort(payload, entry, littleEndian);
+        if (tag == TAG_PIXEL_X_DIMENSION || tag == TAG_PIXEL_Y_DIMENSION) {
+          int value = tag == TAG_PIXEL_X_DIMENSION ? width : height;
+          int type = readShort(payload, entry + 2, littleEndian);
+          if (type == TYPE_SHORT && value <= 0xFFFF) {
+            writeShort(payload, entry + 8, value, littleEndian);
+          } else if (type == TYPE_LONG) {
+            writeInt(payload, entry + 8, value, littleEndian);
+          }
+        }
+      }
+    }
+
+    // unlink IFD1 and its thumbnail
+    final int nextIfd = ifd0 + 2 + count * 12;
+    final int ifd1Offset = readInt(payload, nextIfd, littleEndian);
+    if (ifd1Offset == 0) {
+      return payload.length;
+    }
+    writeInt(payload, nextIfd, 0, littleEndian);
+    final int ifd1 = tiff + ifd1Offset;
+    int thumbnail = -1;
+    int thumbnailLength = 0;
+    int ifd1Count = readShort(payload, ifd1, littleEndian);
+    for (int i = 0; i < ifd1Count; i++) {
+      int entry = ifd1 + 2 + i * 12;
+      int tag = readShort(payload, entry, littleEndian);
+      if (tag == TAG_JPEG_INTERCHANGE_FORMAT) {
+        thumbnail = tiff + readInt(payload, entry + 8, littleEndian);
+      } else if (tag == TAG_JPEG_INTERCHANGE_FORMAT_LENGTH) {
+        thumbnailLength = readInt(payload, entry + 8, littleEndian);
+      }
+    }
+    int cut = ifd1;
+    if (thumbnail >= 0 && thumbnailLength > 0) {
+      // blanked in case the segment cannot be cut short
+      Arrays.fill(payload, thumbnail, thumbnail + thumbnailLength, (byte) 0);
+      cut = Math.min(cut, thumbnail);
+    }
+    // writers put IFD1 and the thumbnail last, cut them off unless other data follows them
+    return dataEnd(payload, tiff, ifd0, littleEndian, 0) <= cut ? cut : payload.length;
+  }
+
+  /**
+   * End of the IFD at {@code ifd} and of every value and sub IFD it points to, not following the
+   * link to the next IFD.
+   */
+  private static int dataEnd(byte[] payload, int tiff, int ifd, boolean littleEndian, int depth) {
+    int count = readShort(payload, ifd, littleEndian);
+    long end = ifd + 2 + count * 12 + 4;
+    for (int i = 0; i < count; i++) {
+      int entry = ifd + 2 + i * 12;
+      int tag = readShort(payload, entry, littleEndian);
+      int type = readShort(payload, entry + 2, littleEndian);
+      long offset = readInt(payload, entry + 8, littleEndian) & 0xFFFFFFFFL;
+      if ((tag == TAG_EXIF_IFD_POINTER || tag == TAG_GPS_IFD_POINTER
+          || tag == TAG_INTEROPERABILITY_IFD_POINTER) && depth < 2) {
+        end = Math.max(end, dataEnd(payload, tiff, tiff + (int) offset, littleEndian, depth + 1));
+      } else if (type > 0 && type < TYPE_SIZES.length) {
+        long size = (readInt(payload, entry + 4, littleEndian) & 0xFFFFFFFFL) * TYPE_SIZES[type];
+        if (size > 4) {
+          end = Math.max(end, tiff + offset + size);
+        }
+      }
+    }
+    return (int) Math.min(end, Integer.MAX_VALUE);
+  }
+
+  private static int readShort(byte[] data, int offset, boolean littleEndian) {
+    int b0 = data[offset] & 0xFF;
+    int b1 = data[offset + 1] & 0xFF;
+    return littleEndian ? b0 | (b1 << 8) : (b0 << 8) | b1;
+  }
+
+  private static int readInt(byte[] data, int offset, boolean littleEndian) {
+    int high = readShort(data, offset + (littleEndian ? 2 : 0), littleEndian);
+    int low = readShort(data, offset + (littleEndian ? 0 : 2), littleEndian);
+    return (high << 16) | low;
+  }
+
+  private static void writeShort(byte[] data, int offset, int value, boolean littleEndian) {
+    data[offset + (littleEndian ? 0 : 1)] = (byte) value;
+    data[offset + (littleEndian ? 1 : 0)] = (byte) (value >> 8);
+  }
+
+  private static void writeInt(byte[] data, int offset, int value, boolean littleEndian) {
+    writeShort(data, offset + (littleEndian ? 0 : 2), value & 0xFFFF, littleEndian);
+    writeShort(data, offset + (littleEndian ? 2 : 0), value >>> 16, littleEndian);
+  }
+
+  private static boolean startsWith(byte[] data, byte[] prefix) {
+    if (data.length < prefix.length) {
+      return false;
+    }
+    for (int i = 0; i < prefix.length; i++) {
+      if (data[i] != prefix[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static void skipFully(DataInputStream in, int count) throws IOException {
+    while (count > 0) {
+      int skipped = in.skipBytes(count);
+      if (skipped <= 0) {
+        throw new EOFException();
+      }
+      count -= skipped;
+    }
+  }
+}
@@ -0,0 +1,165 @@
+package com.example.watermark;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Output stream filter that adds APPn segments to a JPEG as the encoder writes it, right after SOI
+ * and the JFIF APP0 segment, so no second pass over the output file is needed. Once the header
+ * segments are past, bytes go straight through.
+ */
+final class JpegSegmentInjector extends FilterOutputStream {
+
+  /**
+   * Decides which of the encoder's own APPn segments are kept.
+   */
+  interface SegmentFilter {
+
+    /**
+     * @param marker  0xE0 to 0xEF
+     * @param payload the segment without marker and length
+     */
+    boolean keep(int marker, byte[] payload);
+  }
+
+  private static final int STATE_SOI = 0;
+  private static final int STATE_MARKER = 1;
+  private static final int STATE_LENGTH = 2;
+  private static final int STATE_PAYLOAD = 3;
+  private static final int STATE_PASS = 4;
+
+  private final List<byte[]> segments;
+  private final SegmentFilter filter;
+
+  private int state = STATE_SOI;
+  private final byte[] head = new byte[4];
+  private int headLength;
+  private byte[] payload;
+  private int payloadLength;
+  private boolean injected;
+
+  /**
+   * @param segments complete segments (marker, length and payload) to add
+   * @param filter   null keeps all of the encoder's segments
+   */
+  JpegSegmentInjector(OutputStream out, List<byte[]> segments, SegmentFilter filter) {
+    super(out);
+    this.segments = segments;
+    this.filter = filter;
+  }
+
+  /**
+   * Build a complete segment from its marker and payload.
+   */
+  static byte[] segment(int marker, byte[] payload) {
+    int length = payload.length + 2;
+    if (length > 0xFFFF) {
+      throw new IllegalArgumentException("Segment too long: " + length);
+    }
+    byte[] segment = new byte[payload.length + 4];
+    segment[0] = (byte) 0xFF;
+    segment[1] = (byte) marker;
+    segment[2] = (byte) (length >> 8);
+    segment[3] = (byte) length;
+    System.arraycopy(payload, 0, segment, 4, payload.length);
+    return segment;
+  }
+
+  @Override public void write(int b) throws IOException {
+    switch (state) {
+      case STATE_SOI:
+        head[headLength++] = (byte) b;
+        if (headLength == 2) {
+          out.write(head, 0, 2);
+          headLength = 0;
+          // not a JPEG, leave it alone
+          state = (head[0] & 0xFF) == 0xFF && (head[1] & 0xFF) == 0xD8 ? STATE_MARKER : STATE_PASS;
+        }
+        break;
+      case STATE_MARKER:
+        head[headLength++] = (byte) b;
+        if (headLength == 2) {
+          int marker = head[1] & 0xFF;
+          if (marker >= 0xE0 && marker <= 0xEF) {
+            state = STATE_LENGTH;
+          } else {
+            // first non APPn segment (DQT, SOF...), the header is done
+            inject();
+            out.write(head, 0, 2);
+            headLength = 0;
+            state = STATE_PASS;
+          }
+        }
+        break;
+      case STATE_LENGTH:
+        head[headLength++] = (byte) b;
+        if (headLength == 4) {
+          int length = ((head[2] & 0xFF) << 8) | (head[3] & 0xFF);
+          payload = new byte[Math.max(0, length - 2)];
+          payloadLength = 0;
+          if (payload.length == 0) {
+            finishSegment();
+          } else {
+            state = STATE_PAYLOAD;
+          }
+        }
+        break;
+      case STATE_PAYLOAD:
+        payload[payloadLength++] = (byte) b;
+        if (payloadLength == payload.length) {
+          finishSegment();
+        }
+        break;
+      default:
+        out.write(b);
+    }
+  }
+
+  @Override public void write(byte[] b, int off, int len) throws IOException {
+    while (len > 0 && state != STATE_PASS) {
+      if (state == STATE_PAYLOAD) {
+        int count = Math.min(len, payload.length - payloadLength);
+        System.arraycopy(b, off, payload, payloadLength, count);
+        payloadLength += count;
+        off += count;
+        len -= count;
+        if (payloadLength == payload.length) {
+          finishSegment();
+        }
+      } else {
+        write(b[off++]);
+        len--;
+      }
+    }
+    if (len > 0) {
+      out.write(b, off, len);
+    }
+  }
+
+  private void finishSegment() throws IOException {
+    int marker = head[1] & 0xFF;
+    if (marker != 0xE0) {
+      // after SOI and JFIF, before everything else
+      inject();
+    }
+    if (filter == null || filter.keep(marker, payload)) {
+      out.write(head, 0, 4);
+      out.write(payload);
+    }
+    payload = null;
+    headLength = 0;
+    state = STATE_MARKER;
+  }
+
+  private void inject() throws IOException {
+    if (injected) {
+      return;
+    }
+    injected = true;
+    for (byte[] segment : segments) {
+      out.write(segment);
+    }
+  }
+}
@@ -5,31 +5,48 @@ import android.app.Activity;
 import android.content.ClipData;
 import android.content.Intent;
 import android.database.Cursor;
+import android.graphics.RectF;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Environment;
+import android.os.SystemClock;
+import android.provider.DocumentsContract;
 import android.provider.MediaStore;
 import android.provider.Settings;
+import android.text.TextUtils;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.ArrayAdapter;
 import android.widget.Button;
+import android.widget.CheckBox;
+import android.widget.EditText;
 import android.widget.ImageView;
+import android.widget.Spinner;
 import android.widget.TextView;
+import android.widget.Toast;
 import androidx.activity.result.ActivityResultLauncher;
 import androidx.activity.result.contract.ActivityResultContracts;
 import androidx.annotation.NonNull;
+import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 import android.os.Bundle;
-import androidx.documentfile.provider.DocumentFile;
+import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.ListAdapter;
 import androidx.recyclerview.widget.RecyclerView;
 import com.bumptech.glide.Glide;
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.regex.Pattern;
 
 public class MainActivity extends AppCompatActivity {
   private final static String TAG = "Watermark";
@@ -37,7 +54,42 @@ public class MainActivity extends AppCompatActivity {
   private final static int REQUEST_PERMISSION_STORAGE = 101;
   private final static int REQUEST_PERMISSION_ALL_FILES = 102;
 
-  private final List<WatermarkImageBean> imagesList = new ArrayList<>();
+  /**
+   * Rows the directory scan collects before publishing them to the list.
+   */
+  private final static int SCAN_BATCH_SIZE = 500;
+  private final static long SCAN_PUBLISH_INTERVAL_MS = 200;
+
+  /**
+   * Archive entries listed as images, by file name.
+   */
+  private final static Pattern ZIP_IMAGE_NAME =
+      Pattern.compile(".*\\.(jpe?g|png|webp|gif|bmp|heic|heif)");
+
+  /**
+   * Names of the formats outputs are written in, the only ones that may carry the marker.
+   */
+  private final static Pattern ZIP_OUTPUT_NAME = Pattern.compile(".*\\.(jpe?g|png|webp)");
+
+  /**
+   * Logo width offered when a logo is picked for a template that had none.
+   */
+  private final static float DEFAULT_LOGO_WIDTH_RATIO = 0.2f;
+
+  /**
+   * Output format choices before the formats themselves: profile, or keep the source format.
+   */
+  private final static int OUTPUT_PROFILE = 0;
+  private final static int OUTPUT_SOURCE = 1;
+
+  private final ImageListModel imagesList = ImageListModel.get();
+
+  /**
+   * Logo picked in the open settings dialog, and the view showing it; null view while the dialog
+   * is closed.
+   */
+  private Uri settingsLogo;
+  private TextView settingsLogoView;
 
   RecyclerView recyclerView;
   WatermarkImageAdapter adapter;
@@ -50,7 +102,9 @@ public class MainActivity extends AppCompatActivity {
 
     findViewById(R.id.bntPickImages).setOnClickListener(view -> pickImages());
     findViewById(R.id.bntPickDir).setOnClickListener(view -> pickDir());
+    findViewById(R.id.bntPickZip).setOnClickListener(view -> pickZip());
 
+    findViewById(R.id.btnSettings).setOnClickListener(view -> showSettings());
     findViewById(R.id.btnAddWatermark).setOnClickListener(view -> addWatermark());
 
     recyclerView = findViewById(R.id.recyclerView);
@@ -78,18 +132,20 @@ public class MainActivity extends AppCompatActivity {
           Intent data = result.getData();
           if (data.getData() != null) {
             Uri imageUri = data.getData();
-            imagesList.add(new WatermarkImageBean(imageUri));
-            adapter.notifyDataSetChanged();
+            imagesList.addAll(Collections.singletonList(imageUri));
+            submitSnapshot();
             Log.d(TAG, "Selected image:" + imageUri);
           } else if (data.getClipData() != null) {
             ClipData mClipData = data.getClipData();
+            List<Uri> uris = new ArrayList<>(mClipData.getItemCount());
             for (int i = 0; i < mClipData.getItemCount(); i++) {
               ClipData.Item item = mClipData.getItemAt(i);
               Uri uri = item.getUri();
-              imagesList.add(new WatermarkImageBean(uri));
+              uris.add(uri);
               Log.i(TAG, "Selected images:" + uri);
             }
-            adapter.notifyDataSetChanged();
+            imagesList.addAll(uris);
+            submitSnapshot();
           }
         }
       });
@@ -107,61 +163,385 @@ public class MainActivity extends AppCompatActivity {
         if (result.getResultCode() == Activity.RESULT_OK && result.getData() != null) {
           Log.d(TAG, "dir:" + result.getData());
           Uri uri = result.getData().getData();
-          DocumentFile dir = DocumentFile.fromTreeUri(this, uri);
-          if (dir != null) {
-            new Thread(new Runnable() {
-              @Override public void run() {
-                int index = 0;
-                DocumentFile[] files = dir.listFiles();
-                for (DocumentFile file : files) {
-                  Log.i(TAG, "dir >" + index++ + ":" + file.getUri() + ",type:" + file.getType());
-                  String fileType = file.getType();
-                  if (fileType != null && fileType.startsWith("image")) {
-                    imagesList.add(new WatermarkImageBean(file.getUri()));
-                  }
-                }
-                runOnUiThread(() -> adapter.notifyDataSetChanged());
-              }
-            }).start();
+          if (uri != null) {
+            WorkerPools.io().execute(() -> scanDir(uri));
           }
         }
       });
 
+  /**
+   * List the images of a picked directory with one children query, which also returns the mime
+   * type, modification time and size that DocumentFile would query file by file. Rows are published
+   * in batches so the list grows while the scan runs.
+   */
+  private void scanDir(Uri treeUri) {
+    final MediaMetadataResolver metadataResolver =
+        WatermarkBatchRunner.get(this).getMetadataResolver();
+    final String parametersHash = WatermarkBatchRunner.get(this).getParametersHash();
+    final Uri childrenUri = DocumentsContract.buildChildDocumentsUriUsingTree(treeUri,
+        DocumentsContract.getTreeDocumentId(treeUri));
+    final String[] projection = new String[] {
+        DocumentsContract.Document.COLUMN_DOCUMENT_ID,
+        DocumentsContract.Document.COLUMN_MIME_TYPE,
+        DocumentsContract.Document.COLUMN_LAST_MODIFIED,
+        DocumentsContract.Document.COLUMN_SIZE,
+    };
+
+    List<Uri> batch = new ArrayList<>();
+    long lastPublishTime = SystemClock.uptimeMillis();
+    int index = 0;
+    int skipped = 0;
+    try (Cursor cursor = getContentResolver().query(childrenUri, projection, null, null, null)) {
+      if (cursor == null) {
+        return;
+      }
+      while (cursor.moveToNext()) {
+        Uri fileUri = DocumentsContract.buildDocumentUriUsingTree(treeUri, cursor.getString(0));
+        String fileType = cursor.getString(1);
+        Log.v(TAG, "dir >" + index++ + ":" + fileUri + ",type:" + fileType);
+        if (fileType != null && fileType.startsWith("image")) {
+          if (OutputFormat.forMimeType(fileType) != null && isProcessed(fileUri, parametersHash)) {
+            // an earlier output of the same settings, skip it before anything decodes it
+            skipped++;
+            continue;
+          }
+          // no dimensions in a document listing, the planner estimates them from the size
+          metadataResolver.put(fileUri, new MediaMetadataResolver.Metadata(
+              0, cursor.getLong(2), cursor.getLong(3), 0, 0));
+          batch.add(fileUri);
+        }
+
+        long now = SystemClock.uptimeMillis();
+        if (batch.size() >= SCAN_BATCH_SIZE
+            || (!batch.isEmpty() && now - lastPublishTime >= SCAN_PUBLISH_INTERVAL_MS)) {
+          imagesList.addAll(batch);
+          batch.clear();
+          lastPublishTime = now;
+          runOnUiThread(this::submitSnapshot);
+        }
+      }
+    } catch (RuntimeException e) {
+      Log.e(TAG, "Failed to list " + treeUri, e);
+    }
+    imagesList.addAll(batch);
+    runOnUiThread(this::submitSnapshot);
+    Log.i(TAG, "Skipped " + skipped + " already watermarked images in " + treeUri);
+  }
+
+  /**
+   * Whether the file carries the {@link ProcessedMarker} of these settings, reading only the
+   * segments or chunks that may hold it.
+   */
+  private boolean isProcessed(Uri uri, String parametersHash) {
+    InputStream stream = null;
+    try {
+      stream = ImageSource.forUri(getContentResolver(), uri).open();
+      return ProcessedMarker.isProcessed(new BufferedInputStream(stream), parametersHash);
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to read the header of " + uri, e);
+      return false;
+    } finally {
+      BitmapUtil.closeSafe(stream);
+    }
+  }
+
+  final ActivityResultLauncher<Intent> pickZipLauncher =
+      registerForActivityResult(new ActivityResultContracts.StartActivityForResult(), result -> {
+        if (result.getResultCode() == Activity.RESULT_OK && result.getData() != null) {
+          Uri uri = result.getData().getData();
+          Log.d(TAG, "zip:" + uri);
+          if (uri != null) {
+            WorkerPools.io().execute(() -> scanZip(uri));
+          }
+        }
+      });
+
+  /**
+   * List the images of a picked archive from its central directory. Nothing is extracted, the
+   * entries are decoded straight from the archive when the batch runs.
+   */
+  private void scanZip(Uri zipUri) {
+    final MediaMetadataResolver metadataResolver =
+        WatermarkBatchRunner.get(this).getMetadataResolver();
+    final String parametersHash = WatermarkBatchRunner.get(this).getParametersHash();
+    final ZipArchive archive;
+    try {
+      archive = ZipArchive.open(getContentResolver(), zipUri);
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to open " + zipUri, e);
+      return;
+    }
+
+    List<Uri> batch = new ArrayList<>();
+    long lastPublishTime = SystemClock.uptimeMillis();
+    int skipped = 0;
+    for (ZipArchive.Entry entry : archive.entries()) {
+      String name = entry.name;
+      String lowerName = name.toLowerCase(Locale.ROOT);
+      String fileName = lowerName.substring(lowerName.lastIndexOf('/') + 1);
+      if (lowerName.startsWith("__macosx/") || fileName.startsWith(".")
+          || !ZIP_IMAGE_NAME.matcher(fileName).matches()) {
+        continue;
+      }
+      Uri entryUri = archive.entryUri(name);
+      if (ZIP_OUTPUT_NAME.matcher(fileName).matches() && isProcessed(entryUri, parametersHash)) {
+        // an earlier output of the same settings, skip it before anything decodes it
+        skipped++;
+        continue;
+      }
+      metadataResolver.put(entryUri,
+          new MediaMetadataResolver.Metadata(0, entry.modifiedMillis, entry.size, 0, 0));
+      batch.add(entryUri);
+
+      long now = SystemClock.uptimeMillis();
+      if (batch.size() >= SCAN_BATCH_SIZE
+          || (!batch.isEmpty() && now - lastPublishTime >= SCAN_PUBLISH_INTERVAL_MS)) {
+        imagesList.addAll(batch);
+        batch.clear();
+        lastPublishTime = now;
+        runOnUiThread(this::submitSnapshot);
+      }
+    }
+    imagesList.addAll(batch);
+    runOnUiThread(this::submitSnapshot);
+    Log.i(TAG, "Skipped " + skipped + " already watermarked images in " + zipUri);
+  }
+
+  private void pickZip() {
+    Intent i = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+    i.addCategory(Intent.CATEGORY_OPENABLE);
+    i.setType("application/zip");
+    pickZipLauncher.launch(Intent.createChooser(i, "Choose archive"));
+  }
+
   private void pickDir() {
     Intent i = new Intent(Intent.ACTION_OPEN_DOCUMENT_TREE);
     i.addCategory(Intent.CATEGORY_DEFAULT);
     pickDirLauncher.launch(Intent.createChooser(i, "Choose directory"));
   }
 
-  private void addWatermark() {
-    for (int i = 0; i < imagesList.size(); i++) {
-      final WatermarkImageBean src = imagesList.get(i);
-      if (src.watermarked != null) {
-        continue;
+  final ActivityResultLauncher<String[]> pickLogoLauncher =
+      registerForActivityResult(new ActivityResultContracts.OpenDocument(), uri -> {
+        if (uri != null && settingsLogoView != null) {
+          // every batch reads it again, also after a restart
+          getContentResolver().takePersistableUriPermission(uri,
+              Intent.FLAG_GRANT_READ_URI_PERMISSION);
+          settingsLogo = uri;
+          settingsLogoView.setText(uri.getLastPathSegment());
+        }
+      });
+
+  /**
+   * Edit the template of the next batches. It is checked, saved and handed to the runner by
+   * {@link WatermarkSettings}; the offset and the text color are kept.
+   */
+  private void showSettings() {
+    final WatermarkTemplate current = WatermarkBatchRunner.get(this).getTemplate();
+    final OutputFormatPolicy currentPolicy = WatermarkBatchRunner.get(this).getOutputFormatPolicy();
+    final View view = LayoutInflater.from(this).inflate(R.layout.dialog_settings, null);
+    final EditText etLines = view.findViewById(R.id.etLines);
+    final Spinner spLocation = view.findViewById(R.id.spLocation);
+    final EditText etTextSize = view.findViewById(R.id.etTextSize);
+    final EditText etLogoWidth = view.findViewById(R.id.etLogoWidth);
+    final EditText etCrop = view.findViewById(R.id.etCrop);
+    final Spinner spOutputFormat = view.findViewById(R.id.spOutputFormat);
+    final EditText etQuality = view.findViewById(R.id.etQuality);
+    final CheckBox cbKeepLossless = view.findViewById(R.id.cbKeepLossless);
+    final EditText etSizeGoal = view.findViewById(R.id.etSizeGoal);
+    settingsLogoView = view.findViewById(R.id.tvLogo);
+    settingsLogo = current.logo;
+
+    etLines.setText(TextUtils.join("\n", current.lines));
+    spLocation.setAdapter(new ArrayAdapter<>(this, android.R.layout.simple_spinner_dropdown_item,
+        WatermarkTemplate.LOCATIONS));
+    spLocation.setSelection(WatermarkTemplate.LOCATIONS.indexOf(current.location));
+    etTextSize.setText(formatPercent(current.textSizeRatio));
+    etLogoWidth.setText(formatPercent(
+        current.logo != null ? current.logoWidthRatio : DEFAULT_LOGO_WIDTH_RATIO));
+    etCrop.setText(formatCrop(current.crop));
+    settingsLogoView.setText(current.logo != null ? current.logo.getLastPathSegment() : "No logo");
+    view.findViewById(R.id.btnPickLogo).setOnClickListener(
+        v -> pickLogoLauncher.launch(new String[] { "image/*" }));
+    view.findViewById(R.id.btnClearLogo).setOnClickListener(v -> {
+      settingsLogo = null;
+      settingsLogoView.setText("No logo");
+    });
+
+    // null for the choices at OUTPUT_PROFILE and OUTPUT_SOURCE
+    final List<OutputFormat> formats = new ArrayList<>();
+    final List<String> formatNames = new ArrayList<>();
+    formats.add(null);
+    formatNames.add("Fastest within the size goal");
+    formats.add(null);
+    formatNames.add("Same as the source");
+    for (OutputFormat format : OutputFormat.values()) {
+      if (format.isSupported()) {
+        formats.add(format);
+        formatNames.add(format.name());
       }
+    }
+    spOutputFormat.setAdapter(new ArrayAdapter<>(this,
+        android.R.layout.simple_spinner_dropdown_item, formatNames));
+    int formatIndex = currentPolicy.format != null ? formats.indexOf(currentPolicy.format) : -1;
+    spOutputFormat.setSelection(formatIndex >= 0
+        ? formatIndex
+        : currentPolicy.profile ? OUTPUT_PROFILE : OUTPUT_SOURCE);
+    etQuality.setText(String.valueOf(currentPolicy.lossyQuality));
+    cbKeepLossless.setChecked(currentPolicy.keepLossless);
+    etSizeGoal.setText(String.valueOf(currentPolicy.maxBytesPerMegapixel / 1024));
 
-      final int index = i;
-
-      new BitmapImageWatermarkTask(
-          this,
-          src.original,
-          0,
-          "bottomRight",
-          index,
-          response -> {
-            if (response.output != null) {
-              src.watermarked = response.output;
-              adapter.notifyItemChanged(index);
-              Log.i(TAG, "Add watermark to (" + src.watermarked + ")");
-            } else {
-              Log.e(TAG, "Add watermark to (" + src.original + ") failed!" + response.error);
+    new AlertDialog.Builder(this)
+        .setTitle("Watermark")
+        .setView(view)
+        .setNegativeButton(android.R.string.cancel, null)
+        .setPositiveButton(android.R.string.ok, (dialog, which) -> {
+          List<String> lines = new ArrayList<>();
+          for (String line : etLines.getText().toString().split("\n")) {
+            if (!line.trim().isEmpty()) {
+              lines.add(line);
             }
           }
-      ).executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+          try {
+            int output = spOutputFormat.getSelectedItemPosition();
+            OutputFormatPolicy policy = new OutputFormatPolicy(
+                formats.get(output),
+                currentPolicy.sourceFormats,
+                output != OUTPUT_SOURCE,
+                Integer.parseInt(etQuality.getText().toString().trim()),
+                cbKeepLossless.isChecked(),
+                Long.parseLong(etSizeGoal.getText().toString().trim()) * 1024);
+            WatermarkSettings.setTemplate(this, new WatermarkTemplate(
+                lines,
+                (String) spLocation.getSelectedItem(),
+                current.offsetRatio,
+                parsePercent(etTextSize),
+                current.textColor,
+                settingsLogo,
+                settingsLogo != null ? parsePercent(etLogoWidth) : 0,
+                parseCrop(etCrop)));
+            WatermarkSettings.setOutputFormatPolicy(this, policy);
+          } catch (IllegalArgumentException e) {
+            // nothing is saved, a number that does not parse included
+            Toast.makeText(this, e.getMessage(), Toast.LENGTH_LONG).show();
+          }
+        })
+        .setOnDismissListener(dialog -> settingsLogoView = null)
+        .show();
+  }
+
+  private static String formatPercent(float ratio) {
+    return String.format(Locale.US, "%.1f", ratio * 100);
+  }
+
+  /**
+   * @throws NumberFormatException if the text is not a number
+   */
+  private static float parsePercent(EditText editText) {
+    return Float.parseFloat(editText.getText().toString().trim()) / 100;
+  }
+
+  /**
+   * The crop as the percents cut from each side, "0, 0, 0, 0" for none.
+   */
+  private static String formatCrop(RectF crop) {
+    if (crop == null) {
+      return "0, 0, 0, 0";
     }
+    return formatPercent(crop.left) + ", " + formatPercent(crop.top) + ", "
+        + formatPercent(1 - crop.right) + ", " + formatPercent(1 - crop.bottom);
   }
 
-  class WatermarkImageAdapter extends RecyclerView.Adapter<WatermarkImageViewHolder> {
+  /**
+   * Null if nothing is cut.
+   *
+   * @throws IllegalArgumentException if the text is not four numbers
+   */
+  private static RectF parseCrop(EditText editText) {
+    String[] sides = editText.getText().toString().split(",");
+    if (sides.length != 4) {
+      throw new IllegalArgumentException("The crop needs the left, top, right and bottom");
+    }
+    float[] cut = new float[4];
+    boolean none = true;
+    for (int i = 0; i < 4; i++) {
+      cut[i] = Float.parseFloat(sides[i].trim()) / 100;
+      none &= cut[i] == 0;
+    }
+    return none ? null : new RectF(cut[0], cut[1], 1 - cut[2], 1 - cut[3]);
+  }
+
+  private void addWatermark() {
+    final List<WatermarkBatchRunner.Job> jobs = new ArrayList<>();
+    final List<WatermarkImageBean> images = imagesList.snapshot();
+    for (int i = 0; i < images.size(); i++) {
+      final WatermarkImageBean src = images.get(i);
+      if (src.watermarked == null) {
+        jobs.add(new WatermarkBatchRunner.Job(src.original, i));
+      }
+    }
+    if (!jobs.isEmpty()) {
+      WatermarkService.start(this, jobs);
+    }
+  }
+
+  /**
+   * The runner records the outputs in {@link #imagesList} itself, the listener only refreshes the
+   * view. Outputs finished while the activity was stopped show up with the snapshot of onStart.
+   */
+  private final BatchProgress.Listener progressListener = progress -> {
+    if (!progress.completed.isEmpty()) {
+      submitSnapshot();
+    }
+    Log.d(TAG, "Progress " + progress.done() + "/" + progress.total + ", failed:" + progress.failed);
+  };
+
+  /**
+   * Hand the current list to the adapter, which diffs it off the main thread and only re-binds the
+   * rows that changed.
+   */
+  private void submitSnapshot() {
+    adapter.submitList(imagesList.snapshot());
+  }
+
+  @Override protected void onStart() {
+    super.onStart();
+    WatermarkBatchRunner.get(this).addListener(progressListener);
+    submitSnapshot();
+  }
+
+  @Override protected void onStop() {
+    WatermarkBatchRunner.get(this).removeListener(progressListener);
+    super.onStop();
+  }
+
+  /**
+   * Payload for a row whose only change is its watermark status.
+   */
+  private static final Object PAYLOAD_STATUS = new Object();
+
+  private static final DiffUtil.ItemCallback<WatermarkImageBean> DIFF_CALLBACK =
+      new DiffUtil.ItemCallback<WatermarkImageBean>() {
+        @Override public boolean areItemsTheSame(@NonNull WatermarkImageBean oldItem,
+            @NonNull WatermarkImageBean newItem) {
+          return oldItem.original.equals(newItem.original);
+        }
+
+        @Override public boolean areContentsTheSame(@NonNull WatermarkImageBean oldItem,
+            @NonNull WatermarkImageBean newItem) {
+          return Objects.equals(oldItem.watermarked, newItem.watermarked);
+        }
+
+        @Override public Object getChangePayload(@NonNull WatermarkImageBean oldItem,
+            @NonNull WatermarkImageBean newItem) {
+          return PAYLOAD_STATUS;
+        }
+      };
+
+  class WatermarkImageAdapter extends ListAdapter<WatermarkImageBean, WatermarkImageViewHolder> {
+
+    WatermarkImageAdapter() {
+      super(DIFF_CALLBACK);
+    }
 
     @NonNull @Override
     public WatermarkImageViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
@@ -171,17 +551,26 @@ public class MainActivity extends AppCompatActivity {
     }
 
     @Override public void onBindViewHolder(@NonNull WatermarkImageViewHolder holder, int position) {
-      WatermarkImageBean data = imagesList.get(position);
+      WatermarkImageBean data = getItem(position);
       holder.tvIndex.setText(String.valueOf(position));
-      final String path = data.original.toString();
+      // an entry name is a single encoded segment of its uri
+      final String path = ZipArchive.isEntry(data.original)
+          ? data.original.getLastPathSegment()
+          : data.original.toString();
       holder.tvImageName.setText(path.substring(path.lastIndexOf('/') + 1));
       //holder.ivOriginal.setImageURI(data.original);
       Glide.with(MainActivity.this).load(data.original).centerCrop().into(holder.ivOriginal);
       holder.btnWatermarked.setEnabled(data.watermarked != null);
     }
 
-    @Override public int getItemCount() {
-      return imagesList.size();
+    @Override public void onBindViewHolder(@NonNull WatermarkImageViewHolder holder, int position,
+        @NonNull List<Object> payloads) {
+      if (payloads.contains(PAYLOAD_STATUS)) {
+        // only the status changed, keep the name and the thumbnail as they are
+        holder.btnWatermarked.setEnabled(getItem(position).watermarked != null);
+      } else {
+        onBindViewHolder(holder, position);
+      }
     }
   }
 
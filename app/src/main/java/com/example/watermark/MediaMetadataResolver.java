@@ -0,0 +1,266 @@
+package com.example.watermark;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.media.ExifInterface;
+import android.net.Uri;
+import android.provider.DocumentsContract;
+import android.provider.MediaStore;
+import android.text.TextUtils;
+import android.util.Log;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolves DATE_TAKEN/DATE_MODIFIED/SIZE/WIDTH/HEIGHT for a whole batch in a few chunked
+ * MediaStore queries instead of one query per image, and caches the results in memory.
+ */
+final class MediaMetadataResolver {
+  private final static String TAG = "MediaMetadataResolver";
+
+  private static final String MEDIA_DOCUMENTS_AUTHORITY = "com.android.providers.media.documents";
+
+  /**
+   * Ids per {@code _ID IN (...)} query, below SQLite's 999 bound arguments limit.
+   */
+  private static final int CHUNK_SIZE = 500;
+
+  private static final String[] MEDIA_PROJECTION = new String[] {
+      MediaStore.MediaColumns._ID,
+      MediaStore.Images.ImageColumns.DATE_TAKEN,
+      MediaStore.MediaColumns.DATE_MODIFIED,
+      MediaStore.MediaColumns.SIZE,
+      MediaStore.MediaColumns.WIDTH,
+      MediaStore.MediaColumns.HEIGHT,
+  };
+
+  private static final ThreadLocal<SimpleDateFormat> EXIF_DATE_FORMAT =
+      new ThreadLocal<SimpleDateFormat>() {
+        @Override protected SimpleDateFormat initialValue() {
+          return new SimpleDateFormat("yyyy:MM:dd HH:mm:ss", Locale.US);
+        }
+      };
+
+  private final ContentResolver resolver;
+  private final Map<Uri, Metadata> cache = new ConcurrentHashMap<>();
+
+  MediaMetadataResolver(ContentResolver resolver) {
+    this.resolver = resolver;
+  }
+
+  /**
+   * Fetch the metadata of all given uris that MediaStore knows about, grouped by collection and
+   * chunked. Uris it does not know are resolved one by one on {@link #get(Uri)}.
+   */
+  void prefetch(List<Uri> uris) {
+    Map<Uri, Map<Long, Uri>> byCollection = new LinkedHashMap<>();
+    for (Uri uri : uris) {
+      if (cache.containsKey(uri)) {
+        continue;
+      }
+      MediaId mediaId = MediaId.of(uri);
+      if (mediaId == null) {
+        continue;
+      }
+      Map<Long, Uri> ids = byCollection.get(mediaId.collection);
+      if (ids == null) {
+        ids = new LinkedHashMap<>();
+        byCollection.put(mediaId.collection, ids);
+      }
+      ids.put(mediaId.id, uri);
+    }
+
+    int queries = 0;
+    for (Map.Entry<Uri, Map<Long, Uri>> entry : byCollection.entrySet()) {
+      List<Long> ids = new ArrayList<>(entry.getValue().keySet());
+      for (int start = 0; start < ids.size(); start += CHUNK_SIZE) {
+        List<Long> chunk = ids.subList(start, Math.min(ids.size(), start + CHUNK_SIZE));
+        queryChunk(entry.getKey(), chunk, entry.getValue());
+        queries++;
+      }
+    }
+    Log.d(TAG, "Prefetched " + cache.size() + " of " + uris.size() + " in " + queries + " queries");
+  }
+
+  private void queryChunk(Uri collection, List<Long> ids, Map<Long, Uri> uris) {
+    String[] args = new String[ids.size()];
+    for (int i = 0; i < args.length; i++) {
+      args[i] = String.valueOf(ids.get(i));
+    }
+    String selection = MediaStore.MediaColumns._ID
+        + " IN ("
+        + TextUtils.join(",", Collections.nCopies(args.length, "?"))
+        + ")";
+    try (Cursor cursor = resolver.query(collection, MEDIA_PROJECTION, selection, args, null)) {
+      if (cursor == null) {
+        return;
+      }
+      while (cursor.moveToNext()) {
+        Uri uri = uris.get(cursor.getLong(0));
+        if (uri != null) {
+          cache.put(uri, new Metadata(
+              cursor.isNull(1) ? 0 : cursor.getLong(1),
+              cursor.getLong(2) * 1000,
+              cursor.getLong(3),
+              cursor.isNull(4) ? 0 : cursor.getInt(4),
+              cursor.isNull(5) ? 0 : cursor.getInt(5)));
+        }
+      }
+    } catch (RuntimeException e) {
+      Log.w(TAG, "Bulk query of " + collection + " failed", e);
+    }
+  }
+
+  /**
+   * Remember metadata already known from elsewhere, e.g. a directory listing.
+   */
+  void put(Uri uri, Metadata metadata) {
+    cache.put(uri, metadata);
+  }
+
+  /**
+   * The cached metadata of the uri, null if it was neither prefetched nor queried yet.
+   */
+  Metadata getCached(Uri uri) {
+    return cache.get(uri);
+  }
+
+  /**
+   * The cached metadata of the uri, queried on its own if it was not prefetched.
+   */
+  Metadata get(Uri uri) {
+    Metadata metadata = cache.get(uri);
+    if (metadata == null) {
+      metadata = querySingle(uri);
+      cache.put(uri, metadata);
+    }
+    return metadata;
+  }
+
+  private Metadata querySingle(Uri uri) {
+    try (Cursor cursor = resolver.query(uri, null, null, null, null)) {
+      if (cursor == null || !cursor.moveToFirst()) {
+        return Metadata.UNKNOWN;
+      }
+      long dateTaken = getLong(cursor, MediaStore.Images.ImageColumns.DATE_TAKEN, 1);
+      long modified = getLong(cursor, DocumentsContract.Document.COLUMN_LAST_MODIFIED, 1);
+      if (modified == 0) {
+        modified = getLong(cursor, MediaStore.MediaColumns.DATE_MODIFIED, 1000);
+      }
+      long size = getLong(cursor, MediaStore.MediaColumns.SIZE, 1);
+      return new Metadata(dateTaken, modified, size,
+          (int) getLong(cursor, MediaStore.MediaColumns.WIDTH, 1),
+          (int) getLong(cursor, MediaStore.MediaColumns.HEIGHT, 1));
+    } catch (RuntimeException e) {
+      Log.w(TAG, "Query of " + uri + " failed", e);
+      return Metadata.UNKNOWN;
+    }
+  }
+
+  private static long getLong(Cursor cursor, String column, int multiplier) {
+    int index = cursor.getColumnIndex(column);
+    if (index < 0 || cursor.isNull(index)) {
+      return 0;
+    }
+    return cursor.getLong(index) * multiplier;
+  }
+
+  /**
+   * The capture time of the image in EXIF format (yyyy:MM:dd HH:mm:ss), falling back through
+   * DateTime, DateTimeOriginal, DateTimeDigitized, DATE_TAKEN and the modification time.
+   *
+   * @return null if none of them is known
+   */
+  String resolveDateTime(Uri uri, ExifInterface exif) {
+    String dateTime = exif.getAttribute(ExifInterface.TAG_DATETIME);
+    if (dateTime == null) {
+      dateTime = exif.getAttribute(ExifInterface.TAG_DATETIME_ORIGINAL);
+    }
+    if (dateTime == null) {
+      dateTime = exif.getAttribute(ExifInterface.TAG_DATETIME_DIGITIZED);
+    }
+    if (dateTime != null) {
+      return dateTime;
+    }
+
+    Metadata metadata = get(uri);
+    long millis = metadata.dateTakenMillis != 0
+        ? metadata.dateTakenMillis
+        : metadata.dateModifiedMillis;
+    if (millis == 0) {
+      return null;
+    }
+    return EXIF_DATE_FORMAT.get().format(new Date(millis));
+  }
+
+  /**
+   * Date taken, modification time, size and dimensions of an image, 0 when unknown. The dimensions
+   * may be those before the EXIF rotation.
+   */
+  static final class Metadata {
+    static final Metadata UNKNOWN = new Metadata(0, 0, 0, 0, 0);
+
+    final long dateTakenMillis;
+    final long dateModifiedMillis;
+    final long size;
+    final int width;
+    final int height;
+
+    Metadata(long dateTakenMillis, long dateModifiedMillis, long size, int width, int height) {
+      this.dateTakenMillis = dateTakenMillis;
+      this.dateModifiedMillis = dateModifiedMillis;
+      this.size = size;
+      this.width = width;
+      this.height = height;
+    }
+
+    boolean hasDimensions() {
+      return width > 0 && height > 0;
+    }
+  }
+
+  /**
+   * MediaStore row id of a uri and the collection to query it in.
+   */
+  private static final class MediaId {
+    final Uri collection;
+    final long id;
+
+    MediaId(Uri collection, long id) {
+      this.collection = collection;
+      this.id = id;
+    }
+
+    static MediaId of(Uri uri) {
+      try {
+        if (MediaStore.AUTHORITY.equals(uri.getAuthority())) {
+          List<String> segments = uri.getPathSegments();
+          if (segments.size() < 2 || "picker".equals(segments.get(0))) {
+            return null;
+          }
+          long id = Long.parseLong(uri.getLastPathSegment());
+          Uri collection = uri.buildUpon()
+              .path(TextUtils.join("/", segments.subList(0, segments.size() - 1)))
+              .build();
+          return new MediaId(collection, id);
+        }
+        if (MEDIA_DOCUMENTS_AUTHORITY.equals(uri.getAuthority())) {
+          String documentId = DocumentsContract.getDocumentId(uri);
+          if (documentId.startsWith("image:")) {
+            return new MediaId(MediaStore.Images.Media.EXTERNAL_CONTENT_URI,
+                Long.parseLong(documentId.substring("image:".length())));
+          }
+        }
+      } catch (RuntimeException ignored) {
+      }
+      return null;
+    }
+  }
+}
@@ -0,0 +1,97 @@
+package com.example.watermark;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+/**
+ * A format outputs can be encoded in. The WebP variants need API 30, where the platform encoder
+ * tells lossy and lossless apart.
+ */
+enum OutputFormat {
+  JPEG("image/jpeg", "jpg", false),
+  PNG("image/png", "png", true),
+  WEBP_LOSSY("image/webp", "webp", false),
+  WEBP_LOSSLESS("image/webp", "webp", true);
+
+  /**
+   * Compression effort for lossless WebP, where the quality trades encode time for size rather than
+   * fidelity.
+   */
+  private static final int WEBP_LOSSLESS_EFFORT = 50;
+
+  final String mimeType;
+  final String extension;
+  final boolean lossless;
+
+  OutputFormat(String mimeType, String extension, boolean lossless) {
+    this.mimeType = mimeType;
+    this.extension = extension;
+    this.lossless = lossless;
+  }
+
+  boolean isSupported() {
+    return (this != WEBP_LOSSY && this != WEBP_LOSSLESS)
+        || Build.VERSION.SDK_INT >= Build.VERSION_CODES.R;
+  }
+
+  /**
+   * This format, or JPEG or PNG with the same lossless-ness if it is not supported on this device.
+   */
+  OutputFormat orSupported() {
+    return isSupported() ? this : lossless ? PNG : JPEG;
+  }
+
+  /**
+   * @throws IllegalStateException if the format is not supported on this device
+   */
+  Bitmap.CompressFormat compressFormat() {
+    switch (this) {
+      case JPEG:
+        return Bitmap.CompressFormat.JPEG;
+      case PNG:
+        return Bitmap.CompressFormat.PNG;
+      default:
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.R) {
+          throw new IllegalStateException(this + " needs API 30");
+        }
+        return this == WEBP_LOSSY
+            ? Bitmap.CompressFormat.WEBP_LOSSY
+            : Bitmap.CompressFormat.WEBP_LOSSLESS;
+    }
+  }
+
+  /**
+   * The quality passed to {@link Bitmap#compress}, {@code lossyQuality} for the lossy formats.
+   */
+  int quality(int lossyQuality) {
+    switch (this) {
+      case PNG:
+        // ignored
+        return 100;
+      case WEBP_LOSSLESS:
+        return WEBP_LOSSLESS_EFFORT;
+      default:
+        return lossyQuality;
+    }
+  }
+
+  /**
+   * The format a source of the given MIME type is stored in, null if it is none of these. A WebP
+   * source counts as lossy, the bounds do not tell.
+   */
+  static OutputFormat forMimeType(String mimeType) {
+    if (mimeType == null) {
+      return null;
+    }
+    switch (mimeType) {
+      case "image/jpeg":
+        return JPEG;
+      case "image/png":
+        return PNG;
+      case "image/webp":
+        return WEBP_LOSSY;
+      default:
+        return null;
+    }
+  }
+}
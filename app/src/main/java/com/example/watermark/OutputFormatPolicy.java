@@ -0,0 +1,85 @@
+package com.example.watermark;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * How the outputs of a batch are encoded. A format set for the source type wins over the one set
+ * for the batch; with neither the format is either kept from the source or picked by
+ * {@link EncodeProfiler} from trial encodes on the first images of each source type.<br>
+ * Formats the device cannot encode fall back to JPEG or PNG.
+ */
+final class OutputFormatPolicy {
+
+  /**
+   * Profile every source type, keeping lossless sources lossless and JPEG quality as before.
+   */
+  static final OutputFormatPolicy DEFAULT = new OutputFormatPolicy(
+      null, Collections.<String, OutputFormat>emptyMap(), true, 100, true, 0);
+
+  /**
+   * Format of the whole batch, null to choose per source type.
+   */
+  final OutputFormat format;
+
+  /**
+   * Format per source MIME type, such as image/png. Sorted so the marker hash is stable.
+   */
+  final Map<String, OutputFormat> sourceFormats;
+
+  /**
+   * Without a format set, whether to profile the candidates rather than keep the source format.
+   */
+  final boolean profile;
+
+  /**
+   * Quality of the lossy formats, 0 to 100.
+   */
+  final int lossyQuality;
+
+  /**
+   * Quality goal of the profiler: PNG sources, such as screenshots, only get lossless candidates.
+   */
+  final boolean keepLossless;
+
+  /**
+   * Size goal of the profiler: the fastest candidate at most this large wins, the smallest one if
+   * none is. 0 for no goal, then the fastest wins.
+   */
+  final long maxBytesPerMegapixel;
+
+  OutputFormatPolicy(
+      OutputFormat format,
+      Map<String, OutputFormat> sourceFormats,
+      boolean profile,
+      int lossyQuality,
+      boolean keepLossless,
+      long maxBytesPerMegapixel
+  ) {
+    if (lossyQuality < 0 || lossyQuality > 100 || maxBytesPerMegapixel < 0) {
+      throw new IllegalArgumentException(
+          "Invalid quality " + lossyQuality + " or size goal " + maxBytesPerMegapixel);
+    }
+    this.format = format;
+    this.sourceFormats = Collections.unmodifiableMap(new TreeMap<>(sourceFormats));
+    this.profile = profile;
+    this.lossyQuality = lossyQuality;
+    this.keepLossless = keepLossless;
+    this.maxBytesPerMegapixel = maxBytesPerMegapixel;
+  }
+
+  /**
+   * Every setting, part of the processed marker hash like the template.
+   */
+  @Override public String toString() {
+    return "OutputFormatPolicy{"
+        + "format=" + format
+        + ", sourceFormats=" + sourceFormats
+        + ", profile=" + profile
+        + ", lossyQuality=" + lossyQuality
+        + ", keepLossless=" + keepLossless
+        + ", maxBytesPerMegapixel=" + maxBytesPerMegapixel
+        + '}';
+  }
+}
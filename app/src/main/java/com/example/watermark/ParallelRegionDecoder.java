@@ -0,0 +1,190 @@
+package com.example.watermark;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.os.Build;
+import android.util.Log;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decodes one large image on several cores: the image is split in horizontal bands and each worker
+ * decodes bands with its own {@link BitmapRegionDecoder} (a shared one serializes its calls) into a
+ * reused band bitmap, which is drawn straight into the destination at its final place.
+ */
+final class ParallelRegionDecoder {
+  private final static String TAG = "ParallelRegionDecoder";
+
+  /**
+   * Decoded pixels below which splitting costs more than it saves.
+   */
+  private static final long MIN_PIXELS = 4_000_000;
+
+  /**
+   * Bands per worker, so a slow band does not leave the other workers idle at the end.
+   */
+  private static final int BANDS_PER_WORKER = 4;
+
+  private ParallelRegionDecoder() {
+  }
+
+  /**
+   * Whether the image, at the planned sample size, is big enough and in a format
+   * {@link BitmapRegionDecoder} reads.
+   */
+  static boolean isWorthIt(BitmapFactory.Options bounds, int sampleSize) {
+    if (!TiledWatermarkWriter.isRegionDecodable(bounds)) {
+      return false;
+    }
+    long pixels = (long) (bounds.outWidth / sampleSize) * (bounds.outHeight / sampleSize);
+    return pixels >= MIN_PIXELS;
+  }
+
+  /**
+   * Decode the whole image with {@code parallelism} workers on {@link WorkerPools#tiles()}.
+   *
+   * @param bounds bounds from {@link BitmapUtil#decodeImageForOption}, its "inSampleSize" is used as
+   *               the minimum and raised if the image plus one band per worker does not fit. The
+   *               bands of all workers together take about 1/{@link #BANDS_PER_WORKER} of the image
+   */
+  static Bitmap decode(ImageSource source, BitmapFactory.Options bounds, int parallelism)
+      throws IOException {
+    final int width = bounds.outWidth;
+    final int height = bounds.outHeight;
+    // leave room for the bands next to the image
+    final long availableMemory = SampleSizePlanner.availableBitmapMemory()
+        * BANDS_PER_WORKER / (BANDS_PER_WORKER + 1);
+    final int sampleSize = SampleSizePlanner.plan(width, height, Bitmap.Config.ARGB_8888,
+        bounds.inSampleSize, SampleSizePlanner.MAX_SAMPLE_SIZE, 0, availableMemory).sampleSize;
+    bounds.inSampleSize = sampleSize;
+
+    // bands start on a multiple of the sample size times the 16 row MCU, so every band lands on
+    // whole destination rows
+    final int alignment = sampleSize * 16;
+    final int bandCount = parallelism * BANDS_PER_WORKER;
+    final int bandHeight =
+        Math.max(alignment, (height / bandCount + alignment - 1) / alignment * alignment);
+    final int bands = (height + bandHeight - 1) / bandHeight;
+
+    final int destinationWidth = (width + sampleSize - 1) / sampleSize;
+    final int destinationHeight = (height + sampleSize - 1) / sampleSize;
+    // keep the source color space, the bands would otherwise be converted as they are drawn
+    final Bitmap destination =
+        Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && bounds.outColorSpace != null
+            ? Bitmap.createBitmap(destinationWidth, destinationHeight, Bitmap.Config.ARGB_8888,
+            true, bounds.outColorSpace)
+            : Bitmap.createBitmap(destinationWidth, destinationHeight, Bitmap.Config.ARGB_8888);
+
+    final AtomicInteger nextBand = new AtomicInteger();
+    List<Future<?>> workers = new ArrayList<>(parallelism);
+    for (int i = 0; i < parallelism; i++) {
+      workers.add(WorkerPools.tiles().submit(() -> {
+        decodeBands(source, width, height, sampleSize, bandHeight, bands, nextBand, destination);
+        return null;
+      }));
+    }
+
+    try {
+      for (Future<?> worker : workers) {
+        worker.get();
+      }
+    } catch (InterruptedException e) {
+      stop(workers, nextBand, bands);
+      destination.recycle();
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while decoding " + source, e);
+    } catch (ExecutionException e) {
+      stop(workers, nextBand, bands);
+      destination.recycle();
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      throw new RuntimeException("Failed to decode image: " + source, cause);
+    }
+    Log.d(TAG, "Decoded " + width + "x" + height + "/" + sampleSize + " with " + parallelism
+        + " workers: " + source);
+    return destination;
+  }
+
+  private static void decodeBands(ImageSource source, int width, int height,
+      int sampleSize, int bandHeight, int bands, AtomicInteger nextBand, Bitmap destination)
+      throws IOException {
+    InputStream stream = null;
+    BitmapRegionDecoder decoder = null;
+    Bitmap band = null;
+    try {
+      stream = source.open();
+      decoder = BitmapRegionDecoder.newInstance(stream, false);
+
+      BitmapFactory.Options options = new BitmapFactory.Options();
+      options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+      options.inSampleSize = sampleSize;
+      options.inMutable = true;
+      // each worker draws only its own rows
+      Canvas canvas = new Canvas(destination);
+      Rect rect = new Rect();
+      int index;
+      while ((index = nextBand.getAndIncrement()) < bands) {
+        int top = index * bandHeight;
+        int bottom = Math.min(height, top + bandHeight);
+        rect.set(0, top, width, bottom);
+        if (band != null && bottom - top != bandHeight) {
+          // the last, shorter band gets its own bitmap
+          band.recycle();
+          band = null;
+          options.inBitmap = null;
+        }
+        band = decoder.decodeRegion(rect, options);
+        if (band == null) {
+          throw new IOException("Failed to decode rows " + top + "-" + bottom + " of " + source);
+        }
+        options.inBitmap = band;
+        canvas.drawBitmap(band, 0, top / sampleSize, null);
+      }
+    } finally {
+      if (band != null) {
+        band.recycle();
+      }
+      if (decoder != null) {
+        decoder.recycle();
+      }
+      BitmapUtil.closeSafe(stream);
+    }
+  }
+
+  /**
+   * Hand out no more bands and wait until every worker has stopped drawing into the destination,
+   * whatever its outcome, so the destination can be recycled. Futures are not cancelled: a
+   * cancelled future returns while its worker may still be drawing.
+   */
+  private static void stop(List<Future<?>> workers, AtomicInteger nextBand, int bands) {
+    nextBand.set(bands);
+    boolean interrupted = false;
+    for (Future<?> worker : workers) {
+      while (true) {
+        try {
+          worker.get();
+          break;
+        } catch (InterruptedException e) {
+          // the band being decoded is short, finish waiting for it
+          interrupted = true;
+        } catch (ExecutionException | CancellationException e) {
+          break;
+        }
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
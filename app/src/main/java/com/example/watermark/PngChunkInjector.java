@@ -0,0 +1,122 @@
+package com.example.watermark;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Output stream filter that adds chunks to a PNG as the encoder writes it, right after the IHDR
+ * chunk, which PNG requires first. Once IHDR is past, bytes go straight through.
+ */
+final class PngChunkInjector extends FilterOutputStream {
+  static final byte[] SIGNATURE = {
+      (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'
+  };
+
+  /**
+   * Signature and the IHDR chunk: length, type, 13 bytes of data and CRC.
+   */
+  private static final int HEADER_LENGTH = SIGNATURE.length + 4 + 4 + 13 + 4;
+  private static final int TYPE_IHDR = 0x49484452;
+
+  private final List<byte[]> chunks;
+
+  private final byte[] head = new byte[HEADER_LENGTH];
+  private int headLength;
+
+  /**
+   * @param chunks complete chunks (length, type, data and CRC) to add
+   */
+  PngChunkInjector(OutputStream out, List<byte[]> chunks) {
+    super(out);
+    this.chunks = chunks;
+  }
+
+  /**
+   * Build a complete chunk from its type and data.
+   */
+  static byte[] chunk(String type, byte[] data) {
+    byte[] chunk = new byte[data.length + 12];
+    writeInt(chunk, 0, data.length);
+    for (int i = 0; i < 4; i++) {
+      chunk[4 + i] = (byte) type.charAt(i);
+    }
+    System.arraycopy(data, 0, chunk, 8, data.length);
+    // over the type and the data
+    CRC32 crc = new CRC32();
+    crc.update(chunk, 4, data.length + 4);
+    writeInt(chunk, data.length + 8, (int) crc.getValue());
+    return chunk;
+  }
+
+  @Override public void write(int b) throws IOException {
+    if (headLength < HEADER_LENGTH) {
+      head[headLength++] = (byte) b;
+      if (headLength == HEADER_LENGTH) {
+        finishHeader();
+      }
+    } else {
+      out.write(b);
+    }
+  }
+
+  @Override public void write(byte[] b, int off, int len) throws IOException {
+    if (headLength < HEADER_LENGTH) {
+      int count = Math.min(len, HEADER_LENGTH - headLength);
+      System.arraycopy(b, off, head, headLength, count);
+      headLength += count;
+      off += count;
+      len -= count;
+      if (headLength == HEADER_LENGTH) {
+        finishHeader();
+      }
+    }
+    if (len > 0) {
+      out.write(b, off, len);
+    }
+  }
+
+  @Override public void close() throws IOException {
+    if (headLength < HEADER_LENGTH) {
+      // shorter than a header, not a PNG
+      out.write(head, 0, headLength);
+      headLength = HEADER_LENGTH;
+    }
+    super.close();
+  }
+
+  private void finishHeader() throws IOException {
+    out.write(head);
+    if (!isPngHeader(head)) {
+      // leave it alone
+      return;
+    }
+    for (byte[] chunk : chunks) {
+      out.write(chunk);
+    }
+  }
+
+  private static boolean isPngHeader(byte[] head) {
+    for (int i = 0; i < SIGNATURE.length; i++) {
+      if (head[i] != SIGNATURE[i]) {
+        return false;
+      }
+    }
+    return readInt(head, SIGNATURE.length) == 13
+        && readInt(head, SIGNATURE.length + 4) == TYPE_IHDR;
+  }
+
+  private static int readInt(byte[] data, int offset) {
+    return (data[offset] & 0xFF) << 24 | (data[offset + 1] & 0xFF) << 16
+        | (data[offset + 2] & 0xFF) << 8 | (data[offset + 3] & 0xFF);
+  }
+
+  private static void writeInt(byte[] data, int offset, int value) {
+    data[offset] = (byte) (value >>> 24);
+    data[offset + 1] = (byte) (value >>> 16);
+    data[offset + 2] = (byte) (value >>> 8);
+    data[offset + 3] = (byte) value;
+  }
+}
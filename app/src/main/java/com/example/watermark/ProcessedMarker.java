@@ -0,0 +1,253 @@
+package com.example.watermark;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * XMP marker written into every output (tool, version and a hash of the watermark parameters), so
+ * a later scan can tell outputs from originals without decoding them. JPEG outputs carry it in an
+ * APP1 segment, PNG ones in an iTXt chunk and WebP ones in an "XMP " chunk, both before the image
+ * data so a scan stops there.
+ */
+final class ProcessedMarker {
+  static final String TOOL = "com.example.watermark";
+
+  private static final Charset UTF_8 = StandardCharsets.UTF_8;
+  private static final String XMP_NAMESPACE = "http://ns.adobe.com/xap/1.0/\0";
+  private static final String TOOL_ATTRIBUTE = "wm:Tool=\"" + TOOL + "\"";
+
+  /**
+   * iTXt keyword followed by its null, the empty compression flag and method, and the empty
+   * language tag and translated keyword with their nulls.
+   */
+  private static final byte[] PNG_XMP_PREFIX =
+      "XML:com.adobe.xmp\0\0\0\0\0".getBytes(StandardCharsets.ISO_8859_1);
+
+  private static final int PNG_IDAT = 0x49444154;
+  private static final int PNG_ITXT = 0x69545874;
+  private static final int RIFF = 0x52494646;
+  private static final int WEBP = 0x57454250;
+  private static final int WEBP_XMP = 0x584D5020;
+  private static final int WEBP_VP8 = 0x56503820;
+  private static final int WEBP_VP8L = 0x5650384C;
+  private static final int WEBP_ALPH = 0x414C5048;
+  private static final int WEBP_ANIM = 0x414E494D;
+
+  /**
+   * Longest packet read when looking for the marker, ours are well below it.
+   */
+  private static final int MAX_PACKET_LENGTH = 64 * 1024;
+
+  private ProcessedMarker() {
+  }
+
+  /**
+   * Hash of everything that changes how an output looks, so outputs made with other parameters can
+   * be told apart.
+   */
+  static String parametersHash(Object... parameters) {
+    CRC32 crc = new CRC32();
+    for (Object parameter : parameters) {
+      crc.update(String.valueOf(parameter).getBytes(UTF_8));
+      crc.update('|');
+    }
+    return Long.toHexString(crc.getValue());
+  }
+
+  /**
+   * The complete APP1 XMP segment to add to a JPEG output.
+   */
+  static byte[] segment(String parametersHash) {
+    return JpegSegmentInjector.segment(0xE1,
+        concat(XMP_NAMESPACE.getBytes(UTF_8), packet(parametersHash)));
+  }
+
+  /**
+   * The complete iTXt chunk to add to a PNG output.
+   */
+  static byte[] pngChunk(String parametersHash) {
+    return PngChunkInjector.chunk("iTXt", concat(PNG_XMP_PREFIX, packet(parametersHash)));
+  }
+
+  /**
+   * The complete "XMP " chunk to add to a WebP output.
+   */
+  static byte[] webpChunk(String parametersHash) {
+    return WebpChunkInserter.chunk("XMP ", packet(parametersHash));
+  }
+
+  private static byte[] packet(String parametersHash) {
+    String xmp = "<x:xmpmeta xmlns:x=\"adobe:ns:meta/\">"
+        + "<rdf:RDF xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\">"
+        + "<rdf:Description rdf:about=\"\" xmlns:wm=\"http://ns.example.com/watermark/1.0/\" "
+        + TOOL_ATTRIBUTE
+        + " wm:Version=\"" + BuildConfig.VERSION_NAME + "\""
+        + paramsAttribute(parametersHash) + "/>"
+        + "</rdf:RDF></x:xmpmeta>";
+    return xmp.getBytes(UTF_8);
+  }
+
+  private static String paramsAttribute(String parametersHash) {
+    return " wm:Params=\"" + parametersHash + "\"";
+  }
+
+  /**
+   * Whether the JPEG, PNG or WebP in the stream carries the marker with these parameters, an
+   * output made with other ones is not. Only the chunks and segments ahead of the image data that
+   * may hold it are read, the others, such as a large Exif segment copied from the source, are
+   * skipped. Does not close the stream.
+   */
+  static boolean isProcessed(InputStream stream, String parametersHash) throws IOException {
+    DataInputStream in = new DataInputStream(stream);
+    String params = paramsAttribute(parametersHash);
+    try {
+      int magic = in.readInt();
+      if (magic >>> 16 == 0xFFD8) {
+        return isProcessedJpeg(in, magic & 0xFFFF, params);
+      }
+      if (magic == 0x89504E47) {
+        return in.readInt() == 0x0D0A1A0A && isProcessedPng(in, params);
+      }
+      if (magic == RIFF) {
+        in.readInt();
+        return in.readInt() == WEBP && isProcessedWebp(in, params);
+      }
+      return false;
+    } catch (EOFException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Walks the APPn segments.
+   *
+   * @param marker the marker after SOI
+   */
+  private static boolean isProcessedJpeg(DataInputStream in, int marker, String params)
+      throws IOException {
+    byte[] namespace = XMP_NAMESPACE.getBytes(UTF_8);
+    while (true) {
+      if (marker < 0xFFE0 || marker > 0xFFEF) {
+        // past the APPn segments
+        return false;
+      }
+      int length = in.readUnsignedShort() - 2;
+      if (marker == 0xFFE1 && length >= namespace.length) {
+        byte[] payload = new byte[length];
+        in.readFully(payload, 0, namespace.length);
+        length -= namespace.length;
+        if (startsWith(payload, 0, namespace.length, namespace)) {
+          in.readFully(payload, namespace.length, length);
+          if (carriesMarker(payload, namespace.length, params)) {
+            return true;
+          }
+          length = 0;
+        }
+      }
+      if (!skipFully(in, length)) {
+        return false;
+      }
+      marker = in.readUnsignedShort();
+    }
+  }
+
+  /**
+   * Walks the chunks up to the image data, where the iTXt chunk was put.
+   */
+  private static boolean isProcessedPng(DataInputStream in, String params) throws IOException {
+    while (true) {
+      long length = in.readInt() & 0xFFFFFFFFL;
+      int type = in.readInt();
+      if (type == PNG_IDAT) {
+        return false;
+      }
+      if (type == PNG_ITXT && length >= PNG_XMP_PREFIX.length && length <= MAX_PACKET_LENGTH) {
+        byte[] data = new byte[(int) length];
+        in.readFully(data);
+        if (startsWith(data, 0, data.length, PNG_XMP_PREFIX)
+            && carriesMarker(data, PNG_XMP_PREFIX.length, params)) {
+          return true;
+        }
+        length = 0;
+      }
+      // and the CRC
+      if (!skipFully(in, length + 4)) {
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Walks the chunks up to the image data, where the "XMP " chunk was put. Skipping the image data
+   * would inflate all of it when the file is a compressed archive entry.
+   */
+  private static boolean isProcessedWebp(DataInputStream in, String params) throws IOException {
+    while (true) {
+      int type = in.readInt();
+      if (type == WEBP_VP8 || type == WEBP_VP8L || type == WEBP_ALPH || type == WEBP_ANIM) {
+        return false;
+      }
+      long size = Integer.reverseBytes(in.readInt()) & 0xFFFFFFFFL;
+      // chunks are padded to an even size
+      long padded = size + (size & 1);
+      if (type == WEBP_XMP && size <= MAX_PACKET_LENGTH) {
+        byte[] data = new byte[(int) size];
+        in.readFully(data);
+        if (carriesMarker(data, 0, params)) {
+          return true;
+        }
+        padded -= size;
+      }
+      if (!skipFully(in, padded)) {
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Whether an XMP packet, starting at {@code start} in {@code data}, carries the marker with the
+   * {@code params} attribute.
+   */
+  private static boolean carriesMarker(byte[] data, int start, String params) {
+    String packet = new String(data, start, data.length - start, UTF_8);
+    return packet.contains(TOOL_ATTRIBUTE) && packet.contains(params);
+  }
+
+  /**
+   * @return false if the stream ended first
+   */
+  private static boolean skipFully(DataInputStream in, long count) throws IOException {
+    while (count > 0) {
+      long skipped = in.skip(count);
+      if (skipped <= 0) {
+        return false;
+      }
+      count -= skipped;
+    }
+    return true;
+  }
+
+  private static byte[] concat(byte[] prefix, byte[] data) {
+    byte[] result = new byte[prefix.length + data.length];
+    System.arraycopy(prefix, 0, result, 0, prefix.length);
+    System.arraycopy(data, 0, result, prefix.length, data.length);
+    return result;
+  }
+
+  private static boolean startsWith(byte[] data, int start, int end, byte[] prefix) {
+    if (end - start < prefix.length) {
+      return false;
+    }
+    for (int i = 0; i < prefix.length; i++) {
+      if (data[start + i] != prefix[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,231 @@
+package com.example.watermark;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.util.Log;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Picks the decode sample size up front from the image bounds, the pixel config, the memory left
+ * for bitmaps and the max texture size, instead of catching {@link OutOfMemoryError} and retrying
+ * with a doubled sample size.
+ */
+final class SampleSizePlanner {
+  private final static String TAG = "SampleSizePlanner";
+
+  /**
+   * Largest sample size the planner will ever hand out, same limit the old retry loops used.
+   */
+  static final int MAX_SAMPLE_SIZE = 512;
+
+  /**
+   * Part of the free memory a single decode may take, the rest is left for the other workers and
+   * the output bitmap.
+   */
+  private static final double HEAP_BUDGET_RATIO = 0.5;
+
+  private static volatile ActivityManager activityManager;
+
+  private static final AtomicLong plannedCount = new AtomicLong();
+  private static final AtomicLong fallbackCount = new AtomicLong();
+  private static final AtomicLong failedCount = new AtomicLong();
+
+  private SampleSizePlanner() {
+  }
+
+  /**
+   * Let {@link #availableBitmapMemory()} ask the system for the free native memory.
+   */
+  static void init(Context context) {
+    activityManager = (ActivityManager) context.getApplicationContext()
+        .getSystemService(Context.ACTIVITY_SERVICE);
+  }
+
+  /**
+   * Plan a decode of a {@code width} x {@code height} image without a texture size limit.
+   */
+  static Plan plan(int width, int height, Bitmap.Config config, int minSampleSize,
+      int maxSampleSize) {
+    return plan(width, height, config, minSampleSize, maxSampleSize, 0, availableBitmapMemory());
+  }
+
+  /**
+   * Plan a decode of a {@code width} x {@code height} image.
+   *
+   * @param minSampleSize  the sample size the caller asked for, the plan never goes below it
+   * @param maxSampleSize  the largest sample size the caller accepts
+   * @param maxTextureSize max side of the decoded bitmap, 0 for no limit
+   * @param availableMemory bytes the bitmap may take, see {@link #availableBitmapMemory()}; half
+   *                        of it is the budget of this decode
+   * @throws NoFitException if no sample size up to {@code maxSampleSize} fits
+   */
+  static Plan plan(int width, int height, Bitmap.Config config, int minSampleSize,
+      int maxSampleSize, int maxTextureSize, long availableMemory) {
+    if (width <= 0 || height <= 0) {
+      throw new IllegalArgumentException("Unknown image bounds: " + width + "x" + height);
+    }
+    plannedCount.incrementAndGet();
+
+    final int bytesPerPixel = bytesPerPixel(config);
+    final long budget = budget(availableMemory);
+
+    int sampleSize = Math.max(1, minSampleSize);
+    if (maxTextureSize > 0) {
+      while ((width / sampleSize) > maxTextureSize || (height / sampleSize) > maxTextureSize) {
+        sampleSize *= 2;
+      }
+    }
+    final int textureSampleSize = sampleSize;
+
+    long bytes = byteCount(width, height, sampleSize, bytesPerPixel);
+    while (bytes > budget && sampleSize < maxSampleSize) {
+      sampleSize *= 2;
+      bytes = byteCount(width, height, sampleSize, bytesPerPixel);
+    }
+
+    if (bytes > budget || sampleSize > maxSampleSize) {
+      failedCount.incrementAndGet();
+      throw new NoFitException(width, height, sampleSize, bytes, budget);
+    }
+
+    if (sampleSize > textureSampleSize) {
+      fallbackCount.incrementAndGet();
+      Log.w(TAG, "Fall back to sample size "
+          + sampleSize
+          + " for "
+          + width
+          + "x"
+          + height
+          + " (asked "
+          + textureSampleSize
+          + ", budget "
+          + budget
+          + " bytes), "
+          + report());
+    }
+    return new Plan(sampleSize, bytes);
+  }
+
+  /**
+   * Bytes a bitmap can still take. From O on the pixels are allocated in native memory, which is
+   * limited by what the system has free rather than by the Java heap; before O they are on the
+   * Java heap.
+   */
+  static long availableBitmapMemory() {
+    ActivityManager manager = activityManager;
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && manager != null) {
+      ActivityManager.MemoryInfo info = new ActivityManager.MemoryInfo();
+      manager.getMemoryInfo(info);
+      // below the threshold the system starts killing processes
+      return Math.max(0, info.availMem - info.threshold);
+    }
+    return availableHeap();
+  }
+
+  /**
+   * Bytes a single decode may take out of {@code availableMemory}.
+   */
+  static long budget(long availableMemory) {
+    return (long) (availableMemory * HEAP_BUDGET_RATIO);
+  }
+
+  /**
+   * Bytes the process can still allocate on the Java heap.
+   */
+  static long availableHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    long used = runtime.totalMemory() - runtime.freeMemory();
+    return runtime.maxMemory() - used;
+  }
+
+  static int bytesPerPixel(Bitmap.Config config) {
+    if (config == null) {
+      return 4;
+    }
+    switch (config) {
+      case ALPHA_8:
+        return 1;
+      case RGB_565:
+      case ARGB_4444:
+        return 2;
+      default:
+        // ARGB_8888, HARDWARE and anything newer; RGBA_F16 is never requested here
+        return 4;
+    }
+  }
+
+  private static long byteCount(int width, int height, int sampleSize, int bytesPerPixel) {
+    long sampledWidth = (width + sampleSize - 1) / sampleSize;
+    long sampledHeight = (height + sampleSize - 1) / sampleSize;
+    return sampledWidth * sampledHeight * bytesPerPixel;
+  }
+
+  /**
+   * Number of plans that had to raise the sample size above what the caller asked for.
+   */
+  static long getFallbackCount() {
+    return fallbackCount.get();
+  }
+
+  /**
+   * Number of plans that did not fit at all.
+   */
+  static long getFailedCount() {
+    return failedCount.get();
+  }
+
+  static long getPlannedCount() {
+    return plannedCount.get();
+  }
+
+  static String report() {
+    return "planned:" + plannedCount.get()
+        + ", fallbacks:" + fallbackCount.get()
+        + ", failed:" + failedCount.get();
+  }
+
+  /**
+   * The sample size to decode with and the bytes the decoded bitmap will take.
+   */
+  static final class Plan {
+    final int sampleSize;
+    final long byteCount;
+
+    Plan(int sampleSize, long byteCount) {
+      this.sampleSize = sampleSize;
+      this.byteCount = byteCount;
+    }
+  }
+
+  /**
+   * Thrown when the image does not fit in memory even at the largest allowed sample size.
+   */
+  static final class NoFitException extends RuntimeException {
+    final int width;
+    final int height;
+    final int sampleSize;
+    final long byteCount;
+    final long budget;
+
+    NoFitException(int width, int height, int sampleSize, long byteCount, long budget) {
+      super("No sample size fits "
+          + width
+          + "x"
+          + height
+          + ": needs "
+          + byteCount
+          + " bytes at sample size "
+          + sampleSize
+          + ", budget is "
+          + budget
+          + " bytes");
+      this.width = width;
+      this.height = height;
+      this.sampleSize = sampleSize;
+      this.byteCount = byteCount;
+      this.budget = budget;
+    }
+  }
+}
@@ -0,0 +1,418 @@
+package com.example.watermark;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the next queued sources into pooled direct buffers on {@link WorkerPools#prefetch()} while
+ * the decode threads work on the current ones, so slow storage (SD cards, USB OTG, remote document
+ * providers) is read behind the CPU work instead of in front of it.<br>
+ * At most {@link #lookahead} sources are held ahead of the decoders and the buffers, in use or
+ * pooled, never take more than {@link #budget} bytes. A source that is not read ahead (too big, not
+ * queued, or its read failed) is read from the content resolver as before.
+ */
+final class SourcePrefetcher {
+  private final static String TAG = "SourcePrefetcher";
+
+  /**
+   * Buffer sizes are rounded up to this, so a pooled buffer fits most of the next files.
+   */
+  private static final int BUFFER_GRANULARITY = 256 * 1024;
+
+  /**
+   * Part of the app's memory class the buffers may take, they are outside the Java heap but still
+   * count against the process.
+   */
+  private static final int BUDGET_MEMORY_CLASS_DIVISOR = 4;
+
+  private static final long DEFAULT_BUDGET = 32L * 1024 * 1024;
+
+  private final ContentResolver resolver;
+  private final MediaMetadataResolver metadataResolver;
+  private final int lookahead;
+  private final long budget;
+
+  // guarded by this
+  private final ArrayDeque<Uri> queued = new ArrayDeque<>();
+  private final Map<Uri, Entry> entries = new HashMap<>();
+  private final List<ByteBuffer> freeBuffers = new ArrayList<>();
+  private long allocatedBytes;
+  private boolean reading;
+
+  SourcePrefetcher(ContentResolver resolver, MediaMetadataResolver metadataResolver) {
+    this.resolver = resolver;
+    this.metadataResolver = metadataResolver;
+    // the images being decoded are already acquired, this keeps one more round ready
+    this.lookahead = WorkerPools.CORE_COUNT + 1;
+    CapabilityProfile profile = CapabilityProfile.get();
+    this.budget = profile != null && profile.memoryClass > 0
+        ? profile.memoryClass * 1024L * 1024 / BUDGET_MEMORY_CLASS_DIVISOR
+        : DEFAULT_BUDGET;
+  }
+
+  /**
+   * Queue sources in the order the decoders will ask for them.
+   */
+  void enqueue(Collection<Uri> uris) {
+    synchronized (this) {
+      queued.addAll(uris);
+    }
+    scheduleRead();
+  }
+
+  /**
+   * The source to decode {@code uri} from. Waits for a read in progress, a source that was not
+   * read ahead is no longer queued and is read from the content resolver. Must be given back with
+   * {@link #release}.
+   */
+  ImageSource acquire(Uri uri) throws IOException {
+    Entry entry;
+    synchronized (this) {
+      entry = entries.remove(uri);
+      if (entry == null) {
+        queued.remove(uri);
+      }
+    }
+    // a lookahead slot is free
+    scheduleRead();
+    if (entry == null) {
+      return ImageSource.forUri(resolver, uri);
+    }
+    ByteBuffer buffer = entry.await();
+    if (buffer == null) {
+      return ImageSource.forUri(resolver, uri);
+    }
+    return new BufferSource(uri, buffer);
+  }
+
+  /**
+   * Give the buffer of an acquired source back to the pool. The source must not be opened again.
+   */
+  void release(ImageSource source) {
+    if (source instanceof BufferSource) {
+      recycle(((BufferSource) source).buffer);
+      scheduleRead();
+    }
+  }
+
+  /**
+   * Forget a source that will not be acquired, its buffer goes back to the pool.
+   */
+  void discard(Uri uri) {
+    synchronized (this) {
+      queued.remove(uri);
+      Entry entry = entries.remove(uri);
+      ByteBuffer buffer = entry != null ? entry.discard() : null;
+      if (buffer != null) {
+        freeBuffers.add(buffer);
+      }
+    }
+    scheduleRead();
+  }
+
+  /**
+   * Drop the queued sources and the pooled buffers, the ones read ahead are given back as they are
+   * acquired.
+   */
+  synchronized void clear() {
+    queued.clear();
+    for (Entry entry : entries.values()) {
+      ByteBuffer buffer = entry.discard();
+      if (buffer != null) {
+        allocatedBytes -= buffer.capacity();
+      }
+    }
+    entries.clear();
+    for (ByteBuffer buffer : freeBuffers) {
+      allocatedBytes -= buffer.capacity();
+    }
+    freeBuffers.clear();
+  }
+
+  private void scheduleRead() {
+    synchronized (this) {
+      if (reading || queued.isEmpty() || entries.size() >= lookahead) {
+        return;
+      }
+      reading = true;
+    }
+    WorkerPools.prefetch().execute(this::readAhead);
+  }
+
+  /**
+   * Read queued sources until the lookahead is full, the queue is empty or the budget is spent.
+   */
+  private void readAhead() {
+    while (true) {
+      Uri uri;
+      synchronized (this) {
+        if (queued.isEmpty() || entries.size() >= lookahead) {
+          reading = false;
+          return;
+        }
+        uri = queued.peekFirst();
+      }
+
+      long size = metadataResolver.get(uri).size;
+      ParcelFileDescriptor descriptor = null;
+      if (!ZipArchive.isEntry(uri)) {
+        try {
+          descriptor = resolver.openFileDescriptor(uri, "r");
+          if (descriptor != null && descriptor.getStatSize() > 0) {
+            size = descriptor.getStatSize();
+          }
+        } catch (IOException | RuntimeException e) {
+          // read it through a stream below
+        }
+      }
+
+      Entry entry;
+      ByteBuffer buffer;
+      synchronized (this) {
+        if (queued.peekFirst() != uri) {
+          // acquired while its size was looked up
+          BitmapUtil.closeSafe(descriptor);
+          continue;
+        }
+        if (size <= 0 || size > budget / 2) {
+          // unknown or too big to hold, the decoder reads it itself
+          queued.pollFirst();
+          BitmapUtil.closeSafe(descriptor);
+          continue;
+        }
+        buffer = takeBuffer((int) size);
+        if (buffer == null) {
+          // the buffers are taken, released ones restart the reads
+          reading = false;
+          BitmapUtil.closeSafe(descriptor);
+          return;
+        }
+        queued.pollFirst();
+        entry = new Entry();
+        entries.put(uri, entry);
+      }
+
+      boolean complete = false;
+      try {
+        complete = read(uri, descriptor, buffer);
+      } catch (IOException | RuntimeException e) {
+        Log.w(TAG, "Read ahead of " + uri + " failed", e);
+      } finally {
+        BitmapUtil.closeSafe(descriptor);
+      }
+      if (complete) {
+        buffer.flip();
+      } else {
+        recycle(buffer);
+        buffer = null;
+      }
+      synchronized (this) {
+        if (!entry.complete(buffer) && buffer != null) {
+          // cleared while it was read
+          freeBuffers.add(buffer);
+        }
+      }
+    }
+  }
+
+  /**
+   * Fill the buffer with the whole file, false if the file turned out to be bigger.
+   */
+  private boolean read(Uri uri, ParcelFileDescriptor descriptor, ByteBuffer buffer)
+      throws IOException {
+    if (descriptor != null) {
+      // the descriptor owns the file, closed by the caller
+      return read(new FileInputStream(descriptor.getFileDescriptor()).getChannel(), buffer);
+    }
+    // archive entries are inflated into the buffer, their size is the uncompressed one
+    InputStream stream = ImageSource.forUri(resolver, uri).open();
+    try {
+      return read(Channels.newChannel(stream), buffer);
+    } finally {
+      BitmapUtil.closeSafe(stream);
+    }
+  }
+
+  private static boolean read(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer) < 0) {
+        return true;
+      }
+    }
+    // full, it is complete only if nothing is left
+    return channel.read(ByteBuffer.allocate(1)) < 0;
+  }
+
+  /**
+   * The smallest pooled buffer that holds {@code size} bytes, or a new one if the budget allows,
+   * limited to {@code size}. Null if the budget is spent by buffers in use.
+   */
+  private ByteBuffer takeBuffer(int size) {
+    ByteBuffer best = null;
+    for (ByteBuffer buffer : freeBuffers) {
+      if (buffer.capacity() >= size && (best == null || buffer.capacity() < best.capacity())) {
+        best = buffer;
+      }
+    }
+    if (best != null) {
+      freeBuffers.remove(best);
+      best.clear();
+      best.limit(size);
+      return best;
+    }
+
+    int capacity = (size + BUFFER_GRANULARITY - 1) / BUFFER_GRANULARITY * BUFFER_GRANULARITY;
+    // pooled buffers that are too small make room for a bigger one
+    Iterator<ByteBuffer> iterator = freeBuffers.iterator();
+    while (allocatedBytes + capacity > budget && iterator.hasNext()) {
+      allocatedBytes -= iterator.next().capacity();
+      iterator.remove();
+    }
+    if (allocatedBytes + capacity > budget) {
+      return null;
+    }
+    allocatedBytes += capacity;
+    ByteBuffer buffer = ByteBuffer.allocateDirect(capacity);
+    buffer.limit(size);
+    return buffer;
+  }
+
+  private synchronized void recycle(ByteBuffer buffer) {
+    freeBuffers.add(buffer);
+  }
+
+  /**
+   * A source being read or read ahead and not acquired yet.
+   */
+  private static final class Entry {
+    private boolean done;
+    private boolean discarded;
+    private ByteBuffer buffer;
+
+    /**
+     * @return false if the entry was discarded and the buffer is not taken
+     */
+    synchronized boolean complete(ByteBuffer buffer) {
+      done = true;
+      if (discarded) {
+        notifyAll();
+        return false;
+      }
+      this.buffer = buffer;
+      notifyAll();
+      return true;
+    }
+
+    /**
+     * @return the buffer if the read was complete, it is no longer used
+     */
+    synchronized ByteBuffer discard() {
+      discarded = true;
+      ByteBuffer read = buffer;
+      buffer = null;
+      return read;
+    }
+
+    synchronized ByteBuffer await() throws IOException {
+      while (!done) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted while waiting for the read ahead", e);
+        }
+      }
+      return buffer;
+    }
+  }
+
+  /**
+   * A source read ahead, every stream reads the same bytes.
+   */
+  private static final class BufferSource implements ImageSource {
+    final Uri uri;
+    final ByteBuffer buffer;
+
+    BufferSource(Uri uri, ByteBuffer buffer) {
+      this.uri = uri;
+      this.buffer = buffer;
+    }
+
+    @Override public Uri getUri() {
+      return uri;
+    }
+
+    @Override public InputStream open() {
+      return new ByteBufferInputStream(buffer.duplicate());
+    }
+
+    @Override public String toString() {
+      return uri.toString();
+    }
+  }
+
+  /**
+   * Reads a buffer from its position to its limit, with mark support so
+   * {@link android.graphics.BitmapFactory} does not wrap it in a buffered copy.
+   */
+  private static final class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buffer;
+
+    ByteBufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override public int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+    }
+
+    @Override public int read(byte[] b, int off, int len) {
+      if (len == 0) {
+        return 0;
+      }
+      if (!buffer.hasRemaining()) {
+        return -1;
+      }
+      len = Math.min(len, buffer.remaining());
+      buffer.get(b, off, len);
+      return len;
+    }
+
+    @Override public long skip(long n) {
+      int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+      buffer.position(buffer.position() + skipped);
+      return skipped;
+    }
+
+    @Override public int available() {
+      return buffer.remaining();
+    }
+
+    @Override public boolean markSupported() {
+      return true;
+    }
+
+    @Override public synchronized void mark(int readLimit) {
+      buffer.mark();
+    }
+
+    @Override public synchronized void reset() {
+      buffer.reset();
+    }
+  }
+}
@@ -0,0 +1,509 @@
+package com.example.watermark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Baseline JPEG encoder (YCbCr 4:2:0, standard Huffman tables) that takes the image as a sequence
+ * of ARGB row strips and writes every MCU row to the stream as soon as its 16 source rows are in.
+ * Only 16 rows are buffered, so it can encode images of any size at full resolution.
+ */
+final class StripJpegEncoder {
+
+  private static final int[] ZIGZAG = {
+      0, 1, 8, 16, 9, 2, 3, 10,
+      17, 24, 32, 25, 18, 11, 4, 5,
+      12, 19, 26, 33, 40, 48, 41, 34,
+      27, 20, 13, 6, 7, 14, 21, 28,
+      35, 42, 49, 56, 57, 50, 43, 36,
+      29, 22, 15, 23, 30, 37, 44, 51,
+      58, 59, 52, 45, 38, 31, 39, 46,
+      53, 60, 61, 54, 47, 55, 62, 63,
+  };
+
+  private static final int[] LUMINANCE_QUANT = {
+      16, 11, 10, 16, 24, 40, 51, 61,
+      12, 12, 14, 19, 26, 58, 60, 55,
+      14, 13, 16, 24, 40, 57, 69, 56,
+      14, 17, 22, 29, 51, 87, 80, 62,
+      18, 22, 37, 56, 68, 109, 103, 77,
+      24, 35, 55, 64, 81, 104, 113, 92,
+      49, 64, 78, 87, 103, 121, 120, 101,
+      72, 92, 95, 98, 112, 100, 103, 99,
+  };
+
+  private static final int[] CHROMINANCE_QUANT = {
+      17, 18, 24, 47, 99, 99, 99, 99,
+      18, 21, 26, 66, 99, 99, 99, 99,
+      24, 26, 56, 99, 99, 99, 99, 99,
+      47, 66, 99, 99, 99, 99, 99, 99,
+      99, 99, 99, 99, 99, 99, 99, 99,
+      99, 99, 99, 99, 99, 99, 99, 99,
+      99, 99, 99, 99, 99, 99, 99, 99,
+      99, 99, 99, 99, 99, 99, 99, 99,
+  };
+
+  private static final int[] DC_LUMINANCE_BITS = { 0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0 };
+  private static final int[] DC_LUMINANCE_VALUES = { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11 };
+  private static final int[] DC_CHROMINANCE_BITS = { 0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0 };
+  private static final int[] DC_CHROMINANCE_VALUES = { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11 };
+  private static final int[] AC_LUMINANCE_BITS = { 0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d };
+  private static final int[] AC_LUMINANCE_VALUES = {
+      0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12, 0x21, 0x31, 0x41, 0x06, 0x13, 0x51, 0x61,
+      0x07, 0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08, 0x23, 0x42, 0xb1, 0xc1, 0x15, 0x52,
+      0xd1, 0xf0, 0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0a, 0x16, 0x17, 0x18, 0x19, 0x1a, 0x25,
+      0x26, 0x27, 0x28, 0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45,
+      0x46, 0x47, 0x48, 0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64,
+      0x65, 0x66, 0x67, 0x68, 0x69, 0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x83,
+      0x84, 0x85, 0x86, 0x87, 0x88, 0x89, 0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99,
+      0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6,
+      0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3,
+      0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe1, 0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8,
+      0xe9, 0xea, 0xf1, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8, 0xf9, 0xfa,
+  };
+  private static final int[] AC_CHROMINANCE_BITS = { 0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77 };
+  private static final int[] AC_CHROMINANCE_VALUES = {
+      0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21, 0x31, 0x06, 0x12, 0x41, 0x51, 0x07, 0x61,
+      0x71, 0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91, 0xa1, 0xb1, 0xc1, 0x09, 0x23, 0x33,
+      0x52, 0xf0, 0x15, 0x62, 0x72, 0xd1, 0x0a, 0x16, 0x24, 0x34, 0xe1, 0x25, 0xf1, 0x17, 0x18,
+      0x19, 0x1a, 0x26, 0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44,
+      0x45, 0x46, 0x47, 0x48, 0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63,
+      0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a,
+      0x82, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89, 0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97,
+      0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4,
+      0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca,
+      0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7,
+      0xe8, 0xe9, 0xea, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8, 0xf9, 0xfa,
+  };
+
+  private static final double[] AAN_SCALE = {
+      1.0, 1.387039845, 1.306562965, 1.175875602, 1.0, 0.785694958, 0.541196100, 0.275899379,
+  };
+
+  private static final int MCU_SIZE = 16;
+
+  private final OutputStream out;
+  private final int width;
+  private final int height;
+  private final int[] luminanceQuant = new int[64];
+  private final int[] chrominanceQuant = new int[64];
+  private final float[] luminanceDivisors = new float[64];
+  private final float[] chrominanceDivisors = new float[64];
+
+  private final int[][] dcLuminanceCodes = huffmanCodes(DC_LUMINANCE_BITS, DC_LUMINANCE_VALUES);
+  private final int[][] dcChrominanceCodes =
+      huffmanCodes(DC_CHROMINANCE_BITS, DC_CHROMINANCE_VALUES);
+  private final int[][] acLuminanceCodes = huffmanCodes(AC_LUMINANCE_BITS, AC_LUMINANCE_VALUES);
+  private final int[][] acChrominanceCodes =
+      huffmanCodes(AC_CHROMINANCE_BITS, AC_CHROMINANCE_VALUES);
+
+  /**
+   * Buffered ARGB rows of the current MCU row, padded to a multiple of 16 wide.
+   */
+  private final int paddedWidth;
+  private final int[] mcuRows;
+  private int bufferedRows;
+  private int writtenRows;
+
+  private final float[] yPlane;
+  private final float[] cbPlane;
+  private final float[] crPlane;
+  private final float[] block = new float[64];
+  private final int[] quantized = new int[64];
+  private int lastDcY;
+  private int lastDcCb;
+  private int lastDcCr;
+
+  private final byte[] buffer = new byte[16 * 1024];
+  private int bufferLength;
+  private int bitBuffer;
+  private int bitCount;
+
+  /**
+   * @param quality 1..100, same scale as {@link android.graphics.Bitmap#compress}
+   */
+  StripJpegEncoder(OutputStream out, int width, int height, int quality) {
+    if (width <= 0 || height <= 0 || width > 65535 || height > 65535) {
+      throw new IllegalArgumentException("Unsupported JPEG size: " + width + "x" + height);
+    }
+    this.out = out;
+    this.width = width;
+    this.height = height;
+    this.paddedWidth = (width + MCU_SIZE - 1) / MCU_SIZE * MCU_SIZE;
+    this.mcuRows = new int[paddedWidth * MCU_SIZE];
+    this.yPlane = new float[paddedWidth * MCU_SIZE];
+    this.cbPlane = new float[paddedWidth * MCU_SIZE / 4];
+    this.crPlane = new float[paddedWidth * MCU_SIZE / 4];
+    initQuantTables(Math.max(1, Math.min(100, quality)));
+  }
+
+  private void initQuantTables(int quality) {
+    int scale = quality < 50 ? 5000 / quality : 200 - quality * 2;
+    for (int i = 0; i < 64; i++) {
+      luminanceQuant[i] = clampQuant((LUMINANCE_QUANT[i] * scale + 50) / 100);
+      chrominanceQuant[i] = clampQuant((CHROMINANCE_QUANT[i] * scale + 50) / 100);
+    }
+    for (int row = 0; row < 8; row++) {
+      for (int col = 0; col < 8; col++) {
+        int i = row * 8 + col;
+        double aan = AAN_SCALE[row] * AAN_SCALE[col] * 8;
+        luminanceDivisors[i] = (float) (1.0 / (luminanceQuant[i] * aan));
+        chrominanceDivisors[i] = (float) (1.0 / (chrominanceQuant[i] * aan));
+      }
+    }
+  }
+
+  private static int clampQuant(int value) {
+    return Math.max(1, Math.min(255, value));
+  }
+
+  /**
+   * Write everything up to the start of the scan, with an optional APP1 Exif segment holding the
+   * orientation viewers should apply.
+   *
+   * @param exifOrientation EXIF orientation of the pixels, 1 (normal) writes no Exif segment
+   */
+  void writeHeader(int exifOrientation) throws IOException {
+    writeMarker(0xD8);
+
+    // APP0 JFIF 1.01, no thumbnail
+    writeMarker(0xE0);
+    writeShort(16);
+    writeBytes(new byte[] { 'J', 'F', 'I', 'F', 0, 1, 1, 0, 0, 1, 0, 1, 0, 0 });
+
+    if (exifOrientation > 1) {
+      writeBytes(exifOrientationSegment(exifOrientation));
+    }
+
+    writeMarker(0xDB);
+    writeShort(2 + 2 * 65);
+    writeByte(0);
+    for (int i = 0; i < 64; i++) {
+      writeByte(luminanceQuant[ZIGZAG[i]]);
+    }
+    writeByte(1);
+    for (int i = 0; i < 64; i++) {
+      writeByte(chrominanceQuant[ZIGZAG[i]]);
+    }
+
+    // SOF0: 3 components, Y sampled 2x2, Cb and Cr 1x1
+    writeMarker(0xC0);
+    writeShort(17);
+    writeByte(8);
+    writeShort(height);
+    writeShort(width);
+    writeByte(3);
+    writeBytes(new byte[] { 1, 0x22, 0, 2, 0x11, 1, 3, 0x11, 1 });
+
+    writeMarker(0xC4);
+    writeShort(2 + huffmanTableLength(DC_LUMINANCE_VALUES) + huffmanTableLength(AC_LUMINANCE_VALUES)
+        + huffmanTableLength(DC_CHROMINANCE_VALUES) + huffmanTableLength(AC_CHROMINANCE_VALUES));
+    writeHuffmanTable(0x00, DC_LUMINANCE_BITS, DC_LUMINANCE_VALUES);
+    writeHuffmanTable(0x10, AC_LUMINANCE_BITS, AC_LUMINANCE_VALUES);
+    writeHuffmanTable(0x01, DC_CHROMINANCE_BITS, DC_CHROMINANCE_VALUES);
+    writeHuffmanTable(0x11, AC_CHROMINANCE_BITS, AC_CHROMINANCE_VALUES);
+
+    writeMarker(0xDA);
+    writeShort(12);
+    writeByte(3);
+    writeBytes(new byte[] { 1, 0x00, 2, 0x11, 3, 0x11, 0, 63, 0 });
+  }
+
+  /**
+   * Minimal APP1 Exif segment (marker included) with only the orientation tag.
+   */
+  static byte[] exifOrientationSegment(int orientation) {
+    return new byte[] {
+        (byte) 0xFF, (byte) 0xE1, 0, 34,
+        'E', 'x', 'i', 'f', 0, 0,
+        // big endian TIFF header, first IFD at 8
+        'M', 'M', 0, 42, 0, 0, 0, 8,
+        // one entry: 0x0112 Orientation, SHORT, count 1
+        0, 1, 0x01, 0x12, 0, 3, 0, 0, 0, 1, 0, (byte) orientation, 0, 0,
+        // no next IFD
+        0, 0, 0, 0,
+    };
+  }
+
+  /**
+   * Feed the next {@code rows} rows of ARGB pixels, {@code stride} ints apart starting at
+   * {@code offset}. Any number of rows can be passed at a time.
+   */
+  void writeRows(int[] argb, int offset, int stride, int rows) throws IOException {
+    for (int row = 0; row < rows; row++) {
+      if (writtenRows + bufferedRows >= height) {
+        throw new IllegalStateException("More rows than the image height " + height);
+      }
+      int target = bufferedRows * paddedWidth;
+      System.arraycopy(argb, offset + row * stride, mcuRows, target, width);
+      // replicate the last column into the padding
+      int last = mcuRows[target + width - 1];
+      for (int x = width; x < paddedWidth; x++) {
+        mcuRows[target + x] = last;
+      }
+      bufferedRows++;
+      if (bufferedRows == MCU_SIZE) {
+        encodeMcuRow();
+      }
+    }
+  }
+
+  /**
+   * Encode the last partial MCU row and write the end of image marker. Does not close the stream.
+   */
+  void finish() throws IOException {
+    if (writtenRows + bufferedRows != height) {
+      throw new IllegalStateException(
+          "Got " + (writtenRows + bufferedRows) + " rows of " + height);
+    }
+    if (bufferedRows > 0) {
+      // replicate the last row into the padding
+      for (int row = bufferedRows; row < MCU_SIZE; row++) {
+        System.arraycopy(mcuRows, (bufferedRows - 1) * paddedWidth, mcuRows, row * paddedWidth,
+            paddedWidth);
+      }
+      bufferedRows = MCU_SIZE;
+      encodeMcuRow();
+    }
+    // pad the last byte with 1 bits
+    if (bitCount > 0) {
+      writeBits(0x7F, 8 - bitCount);
+    }
+    writeMarker(0xD9);
+    flushBuffer();
+    out.flush();
+  }
+
+  private void encodeMcuRow() throws IOException {
+    final int chromaWidth = paddedWidth / 2;
+    for (int y = 0; y < MCU_SIZE; y++) {
+      for (int x = 0; x < paddedWidth; x++) {
+        int pixel = mcuRows[y * paddedWidth + x];
+        int r = (pixel >> 16) & 0xFF;
+        int g = (pixel >> 8) & 0xFF;
+        int b = pixel & 0xFF;
+        yPlane[y * paddedWidth + x] = 0.299f * r + 0.587f * g + 0.114f * b - 128;
+      }
+    }
+    for (int y = 0; y < MCU_SIZE / 2; y++) {
+      for (int x = 0; x < chromaWidth; x++) {
+        int i = y * 2 * paddedWidth + x * 2;
+        int p0 = mcuRows[i];
+        int p1 = mcuRows[i + 1];
+        int p2 = mcuRows[i + paddedWidth];
+        int p3 = mcuRows[i + paddedWidth + 1];
+        float r = (((p0 >> 16) & 0xFF) + ((p1 >> 16) & 0xFF) + ((p2 >> 16) & 0xFF)
+            + ((p3 >> 16) & 0xFF)) * 0.25f;
+        float g = (((p0 >> 8) & 0xFF) + ((p1 >> 8) & 0xFF) + ((p2 >> 8) & 0xFF)
+            + ((p3 >> 8) & 0xFF)) * 0.25f;
+        float b = ((p0 & 0xFF) + (p1 & 0xFF) + (p2 & 0xFF) + (p3 & 0xFF)) * 0.25f;
+        cbPlane[y * chromaWidth + x] = -0.168736f * r - 0.331264f * g + 0.5f * b;
+        crPlane[y * chromaWidth + x] = 0.5f * r - 0.418688f * g - 0.081312f * b;
+      }
+    }
+
+    for (int mcuX = 0; mcuX < paddedWidth; mcuX += MCU_SIZE) {
+      lastDcY = encodeBlock(yPlane, paddedWidth, mcuX, 0, luminanceDivisors, lastDcY,
+          dcLuminanceCodes, acLuminanceCodes);
+      lastDcY = encodeBlock(yPlane, paddedWidth, mcuX + 8, 0, luminanceDivisors, lastDcY,
+          dcLuminanceCodes, acLuminanceCodes);
+      lastDcY = encodeBlock(yPlane, paddedWidth, mcuX, 8, luminanceDivisors, lastDcY,
+          dcLuminanceCodes, acLuminanceCodes);
+      lastDcY = encodeBlock(yPlane, paddedWidth, mcuX + 8, 8, luminanceDivisors, lastDcY,
+          dcLuminanceCodes, acLuminanceCodes);
+      lastDcCb = encodeBlock(cbPlane, chromaWidth, mcuX / 2, 0, chrominanceDivisors, lastDcCb,
+          dcChrominanceCodes, acChrominanceCodes);
+      lastDcCr = encodeBlock(crPlane, chromaWidth, mcuX / 2, 0, chrominanceDivisors, lastDcCr,
+          dcChrominanceCodes, acChrominanceCodes);
+    }
+
+    writtenRows += Math.min(MCU_SIZE, height - writtenRows);
+    bufferedRows = 0;
+    flushBuffer();
+  }
+
+  /**
+   * Forward DCT (AAN), quantize and Huffman code one 8x8 block.
+   *
+   * @return the DC value for the next block of the component
+   */
+  private int encodeBlock(float[] plane, int planeWidth, int left, int top, float[] divisors,
+      int lastDc, int[][] dcCodes, int[][] acCodes) throws IOException {
+    float[] d = block;
+    for (int y = 0; y < 8; y++) {
+      System.arraycopy(plane, (top + y) * planeWidth + left, d, y * 8, 8);
+    }
+    for (int i = 0; i < 64; i += 8) {
+      fdct(d, i, 1);
+    }
+    for (int i = 0; i < 8; i++) {
+      fdct(d, i, 8);
+    }
+    for (int i = 0; i < 64; i++) {
+      quantized[i] = Math.round(d[ZIGZAG[i]] * divisors[ZIGZAG[i]]);
+    }
+
+    int diff = quantized[0] - lastDc;
+    writeCoefficient(dcCodes, 0, diff);
+
+    int run = 0;
+    for (int i = 1; i < 64; i++) {
+      int value = quantized[i];
+      if (value == 0) {
+        run++;
+        continue;
+      }
+      while (run > 15) {
+        // ZRL
+        writeBits(acCodes[0xF0][0], acCodes[0xF0][1]);
+        run -= 16;
+      }
+      writeCoefficient(acCodes, run << 4, value);
+      run = 0;
+    }
+    if (run > 0) {
+      // EOB
+      writeBits(acCodes[0][0], acCodes[0][1]);
+    }
+    return quantized[0];
+  }
+
+  private void writeCoefficient(int[][] codes, int symbolHigh, int value) throws IOException {
+    int magnitude = value < 0 ? -value : value;
+    int size = 0;
+    while (magnitude != 0) {
+      size++;
+      magnitude >>= 1;
+    }
+    int[] code = codes[symbolHigh | size];
+    writeBits(code[0], code[1]);
+    if (size > 0) {
+      writeBits(value < 0 ? value - 1 : value, size);
+    }
+  }
+
+  private static void fdct(float[] d, int start, int step) {
+    int i0 = start;
+    int i1 = start + step;
+    int i2 = start + 2 * step;
+    int i3 = start + 3 * step;
+    int i4 = start + 4 * step;
+    int i5 = start + 5 * step;
+    int i6 = start + 6 * step;
+    int i7 = start + 7 * step;
+
+    float tmp0 = d[i0] + d[i7];
+    float tmp7 = d[i0] - d[i7];
+    float tmp1 = d[i1] + d[i6];
+    float tmp6 = d[i1] - d[i6];
+    float tmp2 = d[i2] + d[i5];
+    float tmp5 = d[i2] - d[i5];
+    float tmp3 = d[i3] + d[i4];
+    float tmp4 = d[i3] - d[i4];
+
+    float tmp10 = tmp0 + tmp3;
+    float tmp13 = tmp0 - tmp3;
+    float tmp11 = tmp1 + tmp2;
+    float tmp12 = tmp1 - tmp2;
+
+    d[i0] = tmp10 + tmp11;
+    d[i4] = tmp10 - tmp11;
+
+    float z1 = (tmp12 + tmp13) * 0.707106781f;
+    d[i2] = tmp13 + z1;
+    d[i6] = tmp13 - z1;
+
+    tmp10 = tmp4 + tmp5;
+    tmp11 = tmp5 + tmp6;
+    tmp12 = tmp6 + tmp7;
+
+    float z5 = (tmp10 - tmp12) * 0.382683433f;
+    float z2 = 0.541196100f * tmp10 + z5;
+    float z4 = 1.306562965f * tmp12 + z5;
+    float z3 = tmp11 * 0.707106781f;
+
+    float z11 = tmp7 + z3;
+    float z13 = tmp7 - z3;
+
+    d[i5] = z13 + z2;
+    d[i3] = z13 - z2;
+    d[i1] = z11 + z4;
+    d[i7] = z11 - z4;
+  }
+
+  /**
+   * Code and length for each symbol of a Huffman table given as JPEG BITS/HUFFVAL lists.
+   */
+  private static int[][] huffmanCodes(int[] bits, int[] values) {
+    int[][] codes = new int[256][2];
+    int code = 0;
+    int k = 0;
+    for (int length = 1; length <= 16; length++) {
+      for (int i = 0; i < bits[length - 1]; i++) {
+        codes[values[k]][0] = code;
+        codes[values[k]][1] = length;
+        k++;
+        code++;
+      }
+      code <<= 1;
+    }
+    return codes;
+  }
+
+  private static int huffmanTableLength(int[] values) {
+    return 1 + 16 + values.length;
+  }
+
+  private void writeHuffmanTable(int classAndId, int[] bits, int[] values) throws IOException {
+    writeByte(classAndId);
+    for (int bit : bits) {
+      writeByte(bit);
+    }
+    for (int value : values) {
+      writeByte(value);
+    }
+  }
+
+  private void writeBits(int value, int length) throws IOException {
+    bitBuffer = (bitBuffer << length) | (value & ((1 << length) - 1));
+    bitCount += length;
+    while (bitCount >= 8) {
+      int b = (bitBuffer >> (bitCount - 8)) & 0xFF;
+      writeByte(b);
+      if (b == 0xFF) {
+        // byte stuffing
+        writeByte(0);
+      }
+      bitCount -= 8;
+    }
+    bitBuffer &= (1 << bitCount) - 1;
+  }
+
+  private void writeMarker(int marker) throws IOException {
+    writeByte(0xFF);
+    writeByte(marker);
+  }
+
+  private void writeShort(int value) throws IOException {
+    writeByte(value >> 8);
+    writeByte(value);
+  }
+
+  private void writeBytes(byte[] bytes) throws IOException {
+    for (byte b : bytes) {
+      writeByte(b);
+    }
+  }
+
+  private void writeByte(int b) throws IOException {
+    if (bufferLength == buffer.length) {
+      flushBuffer();
+    }
+    buffer[bufferLength++] = (byte) b;
+  }
+
+  private void flushBuffer() throws IOException {
+    out.write(buffer, 0, bufferLength);
+    bufferLength = 0;
+  }
+}
@@ -0,0 +1,200 @@
+package com.example.watermark;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.media.ExifInterface;
+import android.net.Uri;
+import android.util.Log;
+import java.io.BufferedOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Watermarks images that are too big to hold in memory at full resolution.<br>
+ * Horizontal strips are read with {@link BitmapRegionDecoder} into one reused bitmap, the
+ * watermark is drawn only on the strips it overlaps, and each strip goes straight to a
+ * {@link StripJpegEncoder}. Pixels are kept as stored and the EXIF rotation is written to the
+ * output instead, so peak memory is one strip whatever the image size.
+ */
+final class TiledWatermarkWriter {
+  private final static String TAG = "TiledWatermarkWriter";
+
+  /**
+   * Formats {@link BitmapRegionDecoder} can read.
+   */
+  private static final Set<String> REGION_MIME_TYPES =
+      new HashSet<>(Arrays.asList("image/jpeg", "image/png", "image/webp"));
+
+  /**
+   * Part of the memory bitmaps can take that one strip may take.
+   */
+  private static final float STRIP_MEMORY_RATIO = 0.125f;
+
+  private static final int MIN_STRIP_HEIGHT = 16;
+  private static final int MAX_STRIP_HEIGHT = 512;
+
+  /**
+   * Rows copied out of the strip and into the encoder at a time, one MCU row.
+   */
+  private static final int ROWS_PER_CHUNK = 16;
+
+  private TiledWatermarkWriter() {
+  }
+
+  /**
+   * Whether the in-memory path, which holds the decoded image and at worst a rotated or stamped
+   * copy, would go over the budget {@link SampleSizePlanner} gives a decode of the memory bitmaps
+   * can take.
+   */
+  static boolean shouldTile(BitmapFactory.Options bounds) {
+    if (!isRegionDecodable(bounds)) {
+      return false;
+    }
+    long bytes = (long) bounds.outWidth * bounds.outHeight * 4;
+    return bytes * 2 > SampleSizePlanner.budget(SampleSizePlanner.availableBitmapMemory());
+  }
+
+  /**
+   * Whether the bounds are known and {@link BitmapRegionDecoder} can read the format.
+   */
+  static boolean isRegionDecodable(BitmapFactory.Options bounds) {
+    return bounds.outWidth > 0
+        && bounds.outHeight > 0
+        && REGION_MIME_TYPES.contains(bounds.outMimeType);
+  }
+
+  /**
+   * Write the watermarked image to {@code output} as a full resolution JPEG.
+   *
+   * @param bounds       bounds from {@link BitmapUtil#decodeImageForOption}
+   * @param orientation  EXIF orientation of the source, the watermark is placed as displayed
+   * @param values       watermark of this image
+   * @param jpegSegments APPn segments to add to the output header
+   * @param filter       drops segments the encoder writes itself, null to keep them all
+   */
+  static void write(
+      Context context,
+      ImageSource src,
+      BitmapFactory.Options bounds,
+      int orientation,
+      WatermarkRenderPlan plan,
+      WatermarkRenderPlan.Values values,
+      Uri output,
+      int quality,
+      List<byte[]> jpegSegments,
+      JpegSegmentInjector.SegmentFilter filter
+  ) throws IOException {
+    final int width = bounds.outWidth;
+    final int height = bounds.outHeight;
+    final int degrees = BitmapUtil.exifOrientationToDegrees(orientation);
+    final boolean swapped = degrees == 90 || degrees == 270;
+    final int orientedWidth = swapped ? height : width;
+    final int orientedHeight = swapped ? width : height;
+
+    // the watermark is laid out as displayed and drawn through this matrix onto the stored pixels
+    Matrix sourceFromOriented = new Matrix();
+    BitmapUtil.orientationMatrix(width, height, degrees).invert(sourceFromOriented);
+    WatermarkRenderPlan.Stamp stamp = plan.layout(values, orientedWidth, orientedHeight);
+    RectF stampArea = new RectF(stamp.bounds);
+    sourceFromOriented.mapRect(stampArea);
+    // glyphs and anti-aliasing may reach a little past the bounds
+    final float margin = stamp.bounds.height() / 4 + 2;
+    stampArea.inset(-margin, -margin);
+
+    final int stripHeight = stripHeight(width);
+    Log.d(TAG, "Tiled watermark " + width + "x" + height + " in strips of " + stripHeight
+        + " rows: " + src);
+
+    ContentResolver resolver = context.getContentResolver();
+    InputStream stream = null;
+    BitmapRegionDecoder decoder = null;
+    OutputStream out = null;
+    Bitmap strip = null;
+    try {
+      stream = src.open();
+      decoder = BitmapRegionDecoder.newInstance(stream, false);
+
+      out = new JpegSegmentInjector(openOutputStream(resolver, output), jpegSegments, filter);
+      StripJpegEncoder encoder = new StripJpegEncoder(out, width, height, quality);
+      encoder.writeHeader(degrees == 0 ? ExifInterface.ORIENTATION_NORMAL : orientation);
+
+      BitmapFactory.Options options = new BitmapFactory.Options();
+      options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+      options.inMutable = true;
+      int[] rows = new int[width * ROWS_PER_CHUNK];
+      Rect rect = new Rect();
+      for (int top = 0; top < height; top += stripHeight) {
+        final int bottom = Math.min(height, top + stripHeight);
+        rect.set(0, top, width, bottom);
+        if (strip != null && strip.getHeight() != bottom - top) {
+          // the last, shorter strip gets its own bitmap
+          strip.recycle();
+          strip = null;
+          options.inBitmap = null;
+        }
+        strip = decoder.decodeRegion(rect, options);
+        if (strip == null) {
+          throw new IOException("Failed to decode rows " + top + "-" + bottom + " of " + src);
+        }
+        // decode the next strip into the same bitmap
+        options.inBitmap = strip;
+
+        if (stampArea.intersects(0, top, width, bottom)) {
+          Canvas canvas = new Canvas(strip);
+          canvas.translate(0, -top);
+          canvas.concat(sourceFromOriented);
+          stamp.draw(canvas);
+        }
+
+        for (int y = 0; y < bottom - top; y += ROWS_PER_CHUNK) {
+          int count = Math.min(ROWS_PER_CHUNK, bottom - top - y);
+          strip.getPixels(rows, 0, width, 0, y, width, count);
+          encoder.writeRows(rows, 0, width, count);
+        }
+      }
+      encoder.finish();
+    } finally {
+      if (strip != null) {
+        strip.recycle();
+      }
+      if (decoder != null) {
+        decoder.recycle();
+      }
+      BitmapUtil.closeSafe(stream);
+      BitmapUtil.closeSafe(out);
+    }
+  }
+
+  private static OutputStream openOutputStream(ContentResolver resolver, Uri output)
+      throws FileNotFoundException {
+    OutputStream out = resolver.openOutputStream(output);
+    if (out == null) {
+      throw new FileNotFoundException("Cannot write to " + output);
+    }
+    return new BufferedOutputStream(out, 64 * 1024);
+  }
+
+  /**
+   * Rows per strip so a strip takes at most {@link #STRIP_MEMORY_RATIO} of the memory bitmaps can
+   * take, a multiple of the 16 row MCU height.
+   */
+  private static int stripHeight(int width) {
+    long rows =
+        (long) (SampleSizePlanner.availableBitmapMemory() * STRIP_MEMORY_RATIO) / (width * 4L);
+    rows = rows / ROWS_PER_CHUNK * ROWS_PER_CHUNK;
+    return (int) Math.max(MIN_STRIP_HEIGHT, Math.min(MAX_STRIP_HEIGHT, rows));
+  }
+}
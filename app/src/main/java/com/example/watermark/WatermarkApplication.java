@@ -0,0 +1,26 @@
+package com.example.watermark;
+
+import android.app.Application;
+
+/**
+ * Applies the saved settings and warms up everything the first batch would otherwise pay for: the
+ * capability profile, the worker threads and the text rendering of the saved template.
+ */
+public class WatermarkApplication extends Application {
+
+  @Override public void onCreate() {
+    super.onCreate();
+    WorkerPools.prestart();
+    SampleSizePlanner.init(this);
+    // both read their preferences on the io pool, not on the main thread. The settings first, a
+    // first run measures the profile before anything queued after it
+    final WatermarkBatchRunner runner = WatermarkBatchRunner.get(this);
+    runner.loadSavedSettings();
+    // behind the settings on the single io thread, the saved template is in by then
+    WorkerPools.io().execute(() -> {
+      final WatermarkTemplate template = runner.getTemplate();
+      WorkerPools.decode().execute(() -> WatermarkRenderPlan.warmUp(template));
+    });
+    CapabilityProfile.init(this);
+  }
+}
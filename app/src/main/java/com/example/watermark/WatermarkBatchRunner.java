@@ -0,0 +1,357 @@
+package com.example.watermark;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Runs watermark jobs on {@link WorkerPools#decode()} and coalesces their results into at most
+ * {@link #MAX_SNAPSHOTS_PER_SECOND} {@link BatchProgress} snapshots per second on the main thread.
+ * Process wide, so a batch outlives the activity that started it, and the outputs are recorded in
+ * {@link ImageListModel} here rather than by a listener that may not be registered.
+ */
+final class WatermarkBatchRunner {
+  private final static String TAG = "WatermarkBatchRunner";
+
+  static final int MAX_SNAPSHOTS_PER_SECOND = 4;
+  private static final long SNAPSHOT_INTERVAL_MS = 1000 / MAX_SNAPSHOTS_PER_SECOND;
+
+  private static WatermarkBatchRunner instance;
+
+  private final Context context;
+  private final MediaMetadataResolver metadataResolver;
+  private final SourcePrefetcher prefetcher;
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
+  private final List<BatchProgress.Listener> listeners = new CopyOnWriteArrayList<>();
+
+  // guarded by this
+  private int total;
+  private int succeeded;
+  private int failed;
+  private List<BatchProgress.Completed> completedSinceSnapshot = new ArrayList<>();
+  private boolean snapshotScheduled;
+  private long lastSnapshotTime;
+  private BatchProgress lastSnapshot = BatchProgress.IDLE;
+  private long batchStartTime;
+  private long expectedMakespanMillis;
+  private final Map<Job, BitmapImageWatermarkTask> queued = new HashMap<>();
+  private final List<WatermarkRenderPlan> plans = new ArrayList<>();
+  private int cancellations;
+
+  private final Runnable dispatchSnapshot = this::dispatchSnapshot;
+
+  private volatile WatermarkTemplate template = WatermarkTemplate.DEFAULT;
+  private volatile OutputFormatPolicy outputFormatPolicy = OutputFormatPolicy.DEFAULT;
+
+  /**
+   * The saved settings loading on the io pool, null once they are in.
+   */
+  private volatile Future<?> savedSettings;
+
+  private WatermarkBatchRunner(Context context) {
+    this.context = context.getApplicationContext();
+    this.metadataResolver = new MediaMetadataResolver(this.context.getContentResolver());
+    this.prefetcher = new SourcePrefetcher(this.context.getContentResolver(), metadataResolver);
+  }
+
+  static synchronized WatermarkBatchRunner get(Context context) {
+    if (instance == null) {
+      instance = new WatermarkBatchRunner(context);
+    }
+    return instance;
+  }
+
+  MediaMetadataResolver getMetadataResolver() {
+    return metadataResolver;
+  }
+
+  /**
+   * Load the settings saved by {@link WatermarkSettings} on the io pool, at startup. The first
+   * reader or writer of the template or the policy waits for them, which on the single io thread
+   * are in before any task queued after this one runs.
+   */
+  void loadSavedSettings() {
+    savedSettings = WorkerPools.io().submit(() -> {
+      template = WatermarkSettings.loadTemplate(context);
+      outputFormatPolicy = WatermarkSettings.loadOutputFormatPolicy(context);
+    });
+  }
+
+  private void awaitSavedSettings() {
+    Future<?> loading = savedSettings;
+    if (loading == null) {
+      return;
+    }
+    try {
+      loading.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return;
+    } catch (ExecutionException e) {
+      // the defaults stay
+      Log.w(TAG, "Failed to load the saved settings", e.getCause());
+    }
+    savedSettings = null;
+  }
+
+  /**
+   * The template of the batches submitted from now on, see {@link WatermarkSettings}.
+   */
+  void setTemplate(WatermarkTemplate template) {
+    awaitSavedSettings();
+    this.template = template;
+  }
+
+  WatermarkTemplate getTemplate() {
+    awaitSavedSettings();
+    return template;
+  }
+
+  /**
+   * How the outputs of the batches submitted from now on are encoded.
+   */
+  void setOutputFormatPolicy(OutputFormatPolicy outputFormatPolicy) {
+    awaitSavedSettings();
+    this.outputFormatPolicy = outputFormatPolicy;
+  }
+
+  OutputFormatPolicy getOutputFormatPolicy() {
+    awaitSavedSettings();
+    return outputFormatPolicy;
+  }
+
+  /**
+   * Hash of the settings the outputs of the next batches are marked with, see
+   * {@link ProcessedMarker}.
+   */
+  String getParametersHash() {
+    return ProcessedMarker.parametersHash(getTemplate(), getOutputFormatPolicy());
+  }
+
+  /**
+   * Queue the jobs behind any running ones. On the io pool the template is compiled, metadata for
+   * the whole batch is resolved and the jobs are ordered by {@link BatchPlanner} before they reach
+   * the decode pool. Their sources are read ahead in that order.
+   */
+  void submit(final List<Job> jobs) {
+    final WatermarkTemplate template = getTemplate();
+    // profiled afresh per batch, the source types may differ
+    final EncodeProfiler profiler = new EncodeProfiler(getOutputFormatPolicy());
+    final int cancellation;
+    synchronized (this) {
+      cancellation = cancellations;
+      if (isFinishedLocked()) {
+        total = 0;
+        succeeded = 0;
+        failed = 0;
+      }
+      total += jobs.size();
+    }
+    scheduleSnapshot();
+
+    WorkerPools.io().execute(() -> {
+      List<Uri> uris = new ArrayList<>(jobs.size());
+      for (Job job : jobs) {
+        uris.add(job.source);
+      }
+      final WatermarkRenderPlan plan;
+      try {
+        plan = template.compile(context);
+      } catch (RuntimeException e) {
+        Log.e(TAG, "Invalid template " + template, e);
+        for (Job job : jobs) {
+          onJobDone(job, new BitmapImageWatermarkTask.Result(null, e));
+        }
+        return;
+      }
+      metadataResolver.prefetch(uris);
+      BatchPlanner.Plan batchPlan =
+          BatchPlanner.plan(context.getContentResolver(), metadataResolver, jobs);
+      uris.clear();
+      for (Job job : batchPlan.jobs) {
+        uris.add(job.source);
+      }
+      List<BitmapImageWatermarkTask> tasks = new ArrayList<>(batchPlan.jobs.size());
+      for (final Job job : batchPlan.jobs) {
+        tasks.add(new BitmapImageWatermarkTask(
+            context,
+            job.source,
+            plan,
+            job.index,
+            metadataResolver,
+            prefetcher,
+            profiler,
+            result -> onJobDone(job, result)));
+      }
+
+      final boolean cancelled;
+      synchronized (this) {
+        // cancelled while it was planned, none of it is queued yet
+        cancelled = cancellations != cancellation;
+        if (!cancelled) {
+          // released with the rest of the batch
+          plans.add(plan);
+          for (int i = 0; i < tasks.size(); i++) {
+            queued.put(batchPlan.jobs.get(i), tasks.get(i));
+          }
+          if (batchStartTime == 0) {
+            batchStartTime = SystemClock.uptimeMillis();
+          }
+          // jobs queued behind a running batch only add to it
+          expectedMakespanMillis += batchPlan.expectedMakespanMillis;
+        }
+      }
+      if (cancelled) {
+        plan.release();
+        for (Job job : batchPlan.jobs) {
+          onJobDone(job, new BitmapImageWatermarkTask.Result(null,
+              new CancellationException("Cancelled " + job.source)));
+        }
+        return;
+      }
+      prefetcher.enqueue(uris);
+      for (BitmapImageWatermarkTask task : tasks) {
+        WorkerPools.decode().execute(task);
+      }
+    });
+  }
+
+  /**
+   * Skip every job that has not started yet, including the ones still being planned. Running jobs
+   * finish their image. Skipped jobs leave the batch, they count neither as done nor as failed.
+   */
+  void cancel() {
+    synchronized (this) {
+      cancellations++;
+      for (BitmapImageWatermarkTask task : queued.values()) {
+        task.cancel();
+      }
+    }
+  }
+
+  private void onJobDone(Job job, BitmapImageWatermarkTask.Result result) {
+    final boolean cancelled = result.error instanceof CancellationException;
+    if (result.output != null) {
+      Log.i(TAG, "Add watermark to (" + result.output + ")");
+      // recorded even while no activity listens, it picks the list up when it starts
+      ImageListModel.get().markWatermarked(job.source, result.output);
+    } else if (cancelled) {
+      Log.i(TAG, "Add watermark to (" + job.source + ") cancelled");
+    } else {
+      Log.e(TAG, "Add watermark to (" + job.source + ") failed!" + result.error);
+    }
+    synchronized (this) {
+      queued.remove(job);
+      if (cancelled) {
+        total--;
+      } else {
+        if (result.output != null) {
+          succeeded++;
+        } else {
+          failed++;
+        }
+        completedSinceSnapshot.add(
+            new BatchProgress.Completed(job.index, job.source, result.output));
+      }
+      if (isFinishedLocked()) {
+        // nothing is queued, the pooled buffers can go
+        prefetcher.clear();
+        BitmapPool.clear();
+        for (WatermarkRenderPlan finished : plans) {
+          finished.release();
+        }
+        plans.clear();
+        if (batchStartTime != 0) {
+          Log.i(TAG, "Batch of " + total + " done in "
+              + (SystemClock.uptimeMillis() - batchStartTime) + "ms, expected "
+              + expectedMakespanMillis + "ms");
+        }
+        batchStartTime = 0;
+        expectedMakespanMillis = 0;
+      }
+    }
+    scheduleSnapshot();
+  }
+
+  private void scheduleSnapshot() {
+    long delay;
+    synchronized (this) {
+      if (snapshotScheduled) {
+        return;
+      }
+      snapshotScheduled = true;
+      long now = SystemClock.uptimeMillis();
+      delay = Math.max(0, lastSnapshotTime + SNAPSHOT_INTERVAL_MS - now);
+      if (isFinishedLocked()) {
+        // the last snapshot goes out right away
+        delay = 0;
+      }
+    }
+    mainHandler.postDelayed(dispatchSnapshot, delay);
+  }
+
+  private void dispatchSnapshot() {
+    BatchProgress snapshot;
+    synchronized (this) {
+      snapshotScheduled = false;
+      lastSnapshotTime = SystemClock.uptimeMillis();
+      snapshot = new BatchProgress(total, succeeded, failed, completedSinceSnapshot);
+      completedSinceSnapshot = new ArrayList<>();
+      lastSnapshot = snapshot;
+    }
+    for (BatchProgress.Listener listener : listeners) {
+      listener.onProgress(snapshot);
+    }
+  }
+
+  private boolean isFinishedLocked() {
+    return succeeded + failed >= total;
+  }
+
+  synchronized boolean isRunning() {
+    return !isFinishedLocked();
+  }
+
+  /**
+   * The latest dispatched snapshot. Its counts are those of the dispatch and its completed items
+   * were delivered to the listeners registered then.
+   */
+  synchronized BatchProgress getLastSnapshot() {
+    return lastSnapshot;
+  }
+
+  /**
+   * Must be called on the main thread.
+   */
+  void addListener(BatchProgress.Listener listener) {
+    listeners.add(listener);
+  }
+
+  void removeListener(BatchProgress.Listener listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   * One image to watermark and its position in the list, which names the output file.
+   */
+  static final class Job {
+    final Uri source;
+    final int index;
+
+    Job(Uri source, int index) {
+      this.source = source;
+      this.index = index;
+    }
+  }
+}
@@ -0,0 +1,28 @@
+package com.example.watermark;
+
+import android.content.Context;
+import android.net.Uri;
+import androidx.annotation.NonNull;
+import com.bumptech.glide.Glide;
+import com.bumptech.glide.Registry;
+import com.bumptech.glide.annotation.GlideModule;
+import com.bumptech.glide.module.AppGlideModule;
+import java.io.InputStream;
+
+/**
+ * Registers {@link ZipEntryModelLoader} ahead of Glide's own uri loaders, which would hand entry
+ * uris to the content resolver.
+ */
+@GlideModule
+public final class WatermarkGlideModule extends AppGlideModule {
+
+  @Override public void registerComponents(@NonNull Context context, @NonNull Glide glide,
+      @NonNull Registry registry) {
+    registry.prepend(Uri.class, InputStream.class,
+        new ZipEntryModelLoader.Factory(context.getContentResolver()));
+  }
+
+  @Override public boolean isManifestParsingEnabled() {
+    return false;
+  }
+}
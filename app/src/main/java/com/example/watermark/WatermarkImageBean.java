@@ -7,10 +7,18 @@ import android.net.Uri;
  **/
 public class WatermarkImageBean {
   public final Uri original;
-  public Uri watermarked;
+  public final Uri watermarked;
 
   public WatermarkImageBean(Uri original) {
+    this(original, null);
+  }
+
+  private WatermarkImageBean(Uri original, Uri watermarked) {
     this.original = original;
-    this.watermarked = null;
+    this.watermarked = watermarked;
+  }
+
+  public WatermarkImageBean withWatermarked(Uri watermarked) {
+    return new WatermarkImageBean(original, watermarked);
   }
 }
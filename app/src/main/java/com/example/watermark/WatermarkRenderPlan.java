@@ -0,0 +1,419 @@
+package com.example.watermark;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.RectF;
+import android.media.ExifInterface;
+import android.util.Log;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A {@link WatermarkTemplate} parsed once per batch: its lines split into literal text and fields
+ * with their formats created up front, plus the loaded logo. Shared by the decode threads; the
+ * formats and Paints, which are not thread safe, are kept per thread.<br>
+ * Per image {@link #resolve} fills in the fields and {@link #layout} places the result at the
+ * image size, nothing is parsed or allocated beyond the text itself.
+ */
+final class WatermarkRenderPlan {
+  private final static String TAG = "WatermarkRenderPlan";
+
+  /**
+   * Distance between baselines relative to the text size.
+   */
+  private static final float LINE_SPACING = 1.2f;
+
+  private static final String DEFAULT_DATE_PATTERN = "yyyy-MM-dd";
+
+  /**
+   * Format of the date {@link MediaMetadataResolver#resolveDateTime} returns.
+   */
+  private static final ThreadLocal<SimpleDateFormat> EXIF_DATE_TIME =
+      new ThreadLocal<SimpleDateFormat>() {
+        @Override protected SimpleDateFormat initialValue() {
+          return new SimpleDateFormat("yyyy:MM:dd HH:mm:ss", Locale.US);
+        }
+      };
+
+  private static final ThreadLocal<DecimalFormat> COORDINATE =
+      new ThreadLocal<DecimalFormat>() {
+        @Override protected DecimalFormat initialValue() {
+          return new DecimalFormat("0.00000", DecimalFormatSymbols.getInstance(Locale.US));
+        }
+      };
+
+  private static final Paint LOGO_PAINT = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+  final WatermarkTemplate template;
+
+  private final List<List<Part>> lines;
+  private final Bitmap logo;
+  private final boolean top;
+  private final boolean right;
+
+  private final ThreadLocal<Paint> textPaint = new ThreadLocal<Paint>() {
+    @Override protected Paint initialValue() {
+      Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+      paint.setColor(template.textColor);
+      paint.setTextAlign(right ? Paint.Align.RIGHT : Paint.Align.LEFT);
+      return paint;
+    }
+  };
+
+  /**
+   * The last stamp laid out, reused while the batch planner feeds images of the same size and text.
+   * Stamps are immutable and kept by the plan rather than per thread, so no worker thread holds on
+   * to the plan once the batch ends.
+   */
+  private volatile Stamp lastStamp;
+
+  private final ThreadLocal<Paint.FontMetrics> fontMetrics = new ThreadLocal<Paint.FontMetrics>() {
+    @Override protected Paint.FontMetrics initialValue() {
+      return new Paint.FontMetrics();
+    }
+  };
+
+  /**
+   * Use {@link WatermarkTemplate#compile}.
+   *
+   * @throws IllegalArgumentException if a line does not parse
+   */
+  WatermarkRenderPlan(WatermarkTemplate template, Bitmap logo) {
+    this.template = template;
+    this.logo = logo;
+    this.top = template.location.startsWith("top");
+    this.right = template.location.endsWith("Right");
+    List<List<Part>> parsed = new ArrayList<>(template.lines.size());
+    for (String line : template.lines) {
+      parsed.add(parse(line));
+    }
+    this.lines = Collections.unmodifiableList(parsed);
+  }
+
+  /**
+   * Load the typeface and lay out the glyphs of {@code template} once, so the first stamp of a
+   * batch does not pay for it. The logo is left out.
+   */
+  static void warmUp(WatermarkTemplate template) {
+    WatermarkRenderPlan plan = new WatermarkRenderPlan(template, null);
+    Values values = plan.resolve(null, "2020:09:09 12:00:00");
+    Bitmap bitmap = Bitmap.createBitmap(64, 64, Bitmap.Config.ARGB_8888);
+    plan.layout(values, bitmap.getWidth(), bitmap.getHeight()).draw(new Canvas(bitmap));
+    bitmap.recycle();
+  }
+
+  /**
+   * Recycle the logo and drop the last stamp, once no image of the batch is left to draw on.
+   */
+  void release() {
+    lastStamp = null;
+    if (logo != null) {
+      logo.recycle();
+    }
+  }
+
+  /**
+   * The text of every line for one image.
+   *
+   * @param exif     null leaves the EXIF fields out
+   * @param dateTime capture date in the EXIF format, see {@link MediaMetadataResolver}. If it
+   *                 does not parse, date fields show its day part as is
+   */
+  Values resolve(ExifInterface exif, String dateTime) {
+    Date date = null;
+    String rawDay = null;
+    if (dateTime != null) {
+      date = EXIF_DATE_TIME.get().parse(dateTime, new ParsePosition(0));
+      String day = dateTime.trim().split(" ")[0];
+      if (date == null && !day.isEmpty()) {
+        rawDay = day;
+        Log.w(TAG, "Unparsable date \"" + dateTime + "\", stamping \"" + rawDay + "\" as is");
+      }
+    }
+    List<String> texts = new ArrayList<>(lines.size());
+    StringBuilder builder = new StringBuilder();
+    for (List<Part> line : lines) {
+      builder.setLength(0);
+      boolean hasValue = false;
+      boolean hasField = false;
+      for (Part part : line) {
+        boolean present = part.append(builder, exif, date, rawDay);
+        if (!(part instanceof Literal)) {
+          hasField = true;
+          hasValue |= present;
+        }
+      }
+      if (hasValue || !hasField) {
+        // a missing field may leave a separator at the end
+        texts.add(builder.toString().trim());
+      }
+    }
+    return new Values(texts);
+  }
+
+  /**
+   * Place the lines and the logo on a {@code width} x {@code height} image.
+   */
+  Stamp layout(Values values, int width, int height) {
+    Stamp last = lastStamp;
+    if (last != null && last.width == width && last.height == height
+        && last.lines.equals(values.lines)) {
+      return last;
+    }
+
+    final float offset = width * template.offsetRatio;
+    final float textSize = height * template.textSizeRatio;
+    final float lineHeight = textSize * LINE_SPACING;
+
+    Paint paint = textPaint.get();
+    paint.setTextSize(textSize);
+    Paint.FontMetrics metrics = fontMetrics.get();
+    paint.getFontMetrics(metrics);
+
+    final int count = values.lines.size();
+    float textHeight = count == 0 ? 0 : (count - 1) * lineHeight + metrics.descent - metrics.ascent;
+    float textWidth = 0;
+    for (String line : values.lines) {
+      textWidth = Math.max(textWidth, paint.measureText(line));
+    }
+
+    float logoWidth = 0;
+    float logoHeight = 0;
+    if (logo != null) {
+      logoWidth = width * template.logoWidthRatio;
+      logoHeight = logoWidth * logo.getHeight() / logo.getWidth();
+    }
+    // the logo sits above the text, a line gap apart
+    float gap = logo != null && count > 0 ? lineHeight - textSize : 0;
+    float blockHeight = logoHeight + gap + textHeight;
+    float blockTop = top ? offset : height - offset - blockHeight;
+    float edgeX = right ? width - offset : offset;
+
+    RectF logoRect = null;
+    if (logo != null) {
+      float left = right ? edgeX - logoWidth : edgeX;
+      logoRect = new RectF(left, blockTop, left + logoWidth, blockTop + logoHeight);
+    }
+    float[] baselines = new float[count];
+    float firstBaseline = blockTop + logoHeight + gap - metrics.ascent;
+    for (int i = 0; i < count; i++) {
+      baselines[i] = firstBaseline + i * lineHeight;
+    }
+
+    float blockWidth = Math.max(textWidth, logoWidth);
+    RectF bounds = count == 0 && logo == null
+        ? new RectF()
+        : new RectF(right ? edgeX - blockWidth : edgeX, blockTop,
+            right ? edgeX : edgeX + blockWidth, blockTop + blockHeight);
+    Stamp stamp =
+        new Stamp(width, height, values.lines, textSize, edgeX, baselines, logoRect, bounds);
+    lastStamp = stamp;
+    return stamp;
+  }
+
+  private static List<Part> parse(String line) {
+    List<Part> parts = new ArrayList<>();
+    StringBuilder literal = new StringBuilder();
+    int i = 0;
+    while (i < line.length()) {
+      char c = line.charAt(i);
+      if ((c == '{' || c == '}') && i + 1 < line.length() && line.charAt(i + 1) == c) {
+        literal.append(c);
+        i += 2;
+      } else if (c == '{') {
+        int end = line.indexOf('}', i);
+        if (end < 0) {
+          throw new IllegalArgumentException("Unclosed field in \"" + line + "\"");
+        }
+        if (literal.length() > 0) {
+          parts.add(new Literal(literal.toString()));
+          literal.setLength(0);
+        }
+        parts.add(field(line.substring(i + 1, end), line));
+        i = end + 1;
+      } else if (c == '}') {
+        throw new IllegalArgumentException("Unopened field in \"" + line + "\"");
+      } else {
+        literal.append(c);
+        i++;
+      }
+    }
+    if (literal.length() > 0) {
+      parts.add(new Literal(literal.toString()));
+    }
+    return parts;
+  }
+
+  private static Part field(String field, String line) {
+    int colon = field.indexOf(':');
+    String name = colon < 0 ? field : field.substring(0, colon);
+    String argument = colon < 0 ? null : field.substring(colon + 1);
+    switch (name) {
+      case "date":
+        try {
+          return new DateField(argument != null ? argument : DEFAULT_DATE_PATTERN);
+        } catch (IllegalArgumentException e) {
+          throw new IllegalArgumentException(
+              "Invalid date pattern in \"" + line + "\": " + e.getMessage(), e);
+        }
+      case "make":
+        return new TagField(ExifInterface.TAG_MAKE);
+      case "model":
+        return new TagField(ExifInterface.TAG_MODEL);
+      case "gps":
+        return new GpsField();
+      default:
+        throw new IllegalArgumentException("Unknown field {" + field + "} in \"" + line + "\"");
+    }
+  }
+
+  /**
+   * A piece of a line.
+   */
+  private interface Part {
+
+    /**
+     * @param rawDay the day of a date that did not parse, null if it did or there is none
+     * @return false if the value is missing
+     */
+    boolean append(StringBuilder builder, ExifInterface exif, Date date, String rawDay);
+  }
+
+  private static final class Literal implements Part {
+    private final String text;
+
+    Literal(String text) {
+      this.text = text;
+    }
+
+    @Override public boolean append(StringBuilder builder, ExifInterface exif, Date date,
+        String rawDay) {
+      builder.append(text);
+      return true;
+    }
+  }
+
+  private static final class DateField implements Part {
+    private final ThreadLocal<SimpleDateFormat> format;
+
+    /**
+     * @throws IllegalArgumentException if the pattern is invalid
+     */
+    DateField(final String pattern) {
+      final Locale locale = Locale.getDefault();
+      // checked now rather than on the first image
+      new SimpleDateFormat(pattern, locale);
+      format = new ThreadLocal<SimpleDateFormat>() {
+        @Override protected SimpleDateFormat initialValue() {
+          return new SimpleDateFormat(pattern, locale);
+        }
+      };
+    }
+
+    @Override public boolean append(StringBuilder builder, ExifInterface exif, Date date,
+        String rawDay) {
+      if (date == null) {
+        if (rawDay == null) {
+          return false;
+        }
+        builder.append(rawDay);
+        return true;
+      }
+      builder.append(format.get().format(date));
+      return true;
+    }
+  }
+
+  private static final class TagField implements Part {
+    private final String tag;
+
+    TagField(String tag) {
+      this.tag = tag;
+    }
+
+    @Override public boolean append(StringBuilder builder, ExifInterface exif, Date date,
+        String rawDay) {
+      String value = exif != null ? exif.getAttribute(tag) : null;
+      if (value == null || value.trim().isEmpty()) {
+        return false;
+      }
+      builder.append(value.trim());
+      return true;
+    }
+  }
+
+  private static final class GpsField implements Part {
+
+    @Override public boolean append(StringBuilder builder, ExifInterface exif, Date date,
+        String rawDay) {
+      float[] latLong = new float[2];
+      if (exif == null || !exif.getLatLong(latLong)) {
+        return false;
+      }
+      DecimalFormat format = COORDINATE.get();
+      builder.append(format.format(latLong[0])).append(", ").append(format.format(latLong[1]));
+      return true;
+    }
+  }
+
+  /**
+   * The lines of one image, with the lines that have no value left out.
+   */
+  static final class Values {
+    final List<String> lines;
+
+    Values(List<String> lines) {
+      this.lines = Collections.unmodifiableList(lines);
+    }
+  }
+
+  /**
+   * The watermark placed on an image of a given size.
+   */
+  final class Stamp {
+    private final int width;
+    private final int height;
+    private final List<String> lines;
+    private final float textSize;
+    private final float x;
+    private final float[] baselines;
+    private final RectF logoRect;
+
+    /**
+     * The area drawn on, empty if there is nothing to draw. Glyphs may reach slightly outside of
+     * it. Not to be modified, stamps are shared.
+     */
+    final RectF bounds;
+
+    Stamp(int width, int height, List<String> lines, float textSize, float x, float[] baselines,
+        RectF logoRect, RectF bounds) {
+      this.width = width;
+      this.height = height;
+      this.lines = lines;
+      this.textSize = textSize;
+      this.x = x;
+      this.baselines = baselines;
+      this.logoRect = logoRect;
+      this.bounds = bounds;
+    }
+
+    void draw(Canvas canvas) {
+      if (logoRect != null) {
+        canvas.drawBitmap(logo, null, logoRect, LOGO_PAINT);
+      }
+      Paint paint = textPaint.get();
+      paint.setTextSize(textSize);
+      for (int i = 0; i < lines.size(); i++) {
+        canvas.drawText(lines.get(i), x, baselines[i], paint);
+      }
+    }
+  }
+}
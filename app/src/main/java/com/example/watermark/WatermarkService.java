@@ -0,0 +1,128 @@
+package com.example.watermark;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+import android.os.IBinder;
+import android.os.SystemClock;
+import androidx.annotation.Nullable;
+import androidx.core.app.NotificationCompat;
+import androidx.core.app.NotificationManagerCompat;
+import androidx.core.content.ContextCompat;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Foreground service that keeps the process alive while {@link WatermarkBatchRunner} has work, and
+ * shows its progress in a notification updated at most once per second. The notification's cancel
+ * action skips the jobs that have not started.
+ */
+public class WatermarkService extends Service implements BatchProgress.Listener {
+  private static final String CHANNEL_ID = "watermark_batch";
+  private static final int NOTIFICATION_ID = 1;
+  private static final long NOTIFICATION_INTERVAL_MS = 1000;
+  private static final String ACTION_CANCEL = "com.example.watermark.action.CANCEL";
+
+  /**
+   * Jobs handed over by {@link #start(Context, List)}; a 10k image batch does not fit in an Intent.
+   */
+  private static final List<WatermarkBatchRunner.Job> pendingJobs = new ArrayList<>();
+
+  private WatermarkBatchRunner runner;
+  private NotificationCompat.Builder notificationBuilder;
+  private long lastNotificationTime;
+
+  /**
+   * Start watermarking the given jobs in the foreground service.
+   */
+  static void start(Context context, List<WatermarkBatchRunner.Job> jobs) {
+    synchronized (pendingJobs) {
+      pendingJobs.addAll(jobs);
+    }
+    ContextCompat.startForegroundService(context, new Intent(context, WatermarkService.class));
+  }
+
+  @Override public void onCreate() {
+    super.onCreate();
+    runner = WatermarkBatchRunner.get(this);
+    createNotificationChannel();
+
+    Intent launchIntent = new Intent(this, MainActivity.class)
+        .setFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
+    notificationBuilder = new NotificationCompat.Builder(this, CHANNEL_ID)
+        .setSmallIcon(R.drawable.ic_launcher_foreground)
+        .setContentTitle("Adding watermarks")
+        .setOnlyAlertOnce(true)
+        .setOngoing(true)
+        .setContentIntent(PendingIntent.getActivity(this, 0, launchIntent,
+            PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE))
+        .addAction(0, "Cancel", PendingIntent.getService(this, 0,
+            new Intent(this, WatermarkService.class).setAction(ACTION_CANCEL),
+            PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE));
+    runner.addListener(this);
+  }
+
+  @Override public int onStartCommand(Intent intent, int flags, int startId) {
+    startForeground(NOTIFICATION_ID, buildNotification(runner.getLastSnapshot()));
+    if (intent != null && ACTION_CANCEL.equals(intent.getAction())) {
+      // the service stops once the running jobs finish
+      runner.cancel();
+    }
+
+    List<WatermarkBatchRunner.Job> jobs;
+    synchronized (pendingJobs) {
+      jobs = new ArrayList<>(pendingJobs);
+      pendingJobs.clear();
+    }
+    if (!jobs.isEmpty()) {
+      runner.submit(jobs);
+    } else if (!runner.isRunning()) {
+      stopSelf(startId);
+    }
+    return START_NOT_STICKY;
+  }
+
+  @Override public void onProgress(BatchProgress progress) {
+    if (progress.isFinished() && !runner.isRunning()) {
+      stopForeground(true);
+      stopSelf();
+      return;
+    }
+    long now = SystemClock.uptimeMillis();
+    if (now - lastNotificationTime >= NOTIFICATION_INTERVAL_MS) {
+      lastNotificationTime = now;
+      NotificationManagerCompat.from(this).notify(NOTIFICATION_ID, buildNotification(progress));
+    }
+  }
+
+  private Notification buildNotification(BatchProgress progress) {
+    return notificationBuilder
+        .setContentText(progress.done() + " / " + progress.total
+            + (progress.failed > 0 ? ", " + progress.failed + " failed" : ""))
+        .setProgress(progress.total, progress.done(), progress.total == 0)
+        .build();
+  }
+
+  private void createNotificationChannel() {
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+      NotificationChannel channel =
+          new NotificationChannel(CHANNEL_ID, "Watermark batches",
+              NotificationManager.IMPORTANCE_LOW);
+      getSystemService(NotificationManager.class).createNotificationChannel(channel);
+    }
+  }
+
+  @Override public void onDestroy() {
+    runner.removeListener(this);
+    super.onDestroy();
+  }
+
+  @Nullable @Override public IBinder onBind(Intent intent) {
+    return null;
+  }
+}
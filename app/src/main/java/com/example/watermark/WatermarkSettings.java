@@ -0,0 +1,145 @@
+package com.example.watermark;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.RectF;
+import android.net.Uri;
+import android.text.TextUtils;
+import android.util.Log;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * The settings picked in the settings dialog, persisted so every batch after a restart uses them,
+ * and applied to {@link WatermarkBatchRunner}, which loads them back at startup.
+ */
+final class WatermarkSettings {
+  private final static String TAG = "WatermarkSettings";
+
+  private static final String PREFS_NAME = "watermark_settings";
+  private static final String KEY_LINES = "lines";
+  private static final String KEY_LOCATION = "location";
+  private static final String KEY_OFFSET_RATIO = "offset_ratio";
+  private static final String KEY_TEXT_SIZE_RATIO = "text_size_ratio";
+  private static final String KEY_TEXT_COLOR = "text_color";
+  private static final String KEY_LOGO = "logo";
+  private static final String KEY_LOGO_WIDTH_RATIO = "logo_width_ratio";
+  private static final String KEY_CROP = "crop";
+  private static final String KEY_OUTPUT_FORMAT = "output_format";
+  private static final String KEY_PROFILE = "profile";
+  private static final String KEY_LOSSY_QUALITY = "lossy_quality";
+  private static final String KEY_KEEP_LOSSLESS = "keep_lossless";
+  private static final String KEY_MAX_BYTES_PER_MEGAPIXEL = "max_bytes_per_megapixel";
+
+  private WatermarkSettings() {
+  }
+
+  /**
+   * Save the template and use it for the batches submitted from now on.
+   *
+   * @throws IllegalArgumentException if the template is invalid, nothing is saved then
+   */
+  static void setTemplate(Context context, WatermarkTemplate template) {
+    template.check();
+    context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+        .edit()
+        .putString(KEY_LINES, TextUtils.join("\n", template.lines))
+        .putString(KEY_LOCATION, template.location)
+        .putFloat(KEY_OFFSET_RATIO, template.offsetRatio)
+        .putFloat(KEY_TEXT_SIZE_RATIO, template.textSizeRatio)
+        .putInt(KEY_TEXT_COLOR, template.textColor)
+        .putString(KEY_LOGO, template.logo != null ? template.logo.toString() : null)
+        .putFloat(KEY_LOGO_WIDTH_RATIO, template.logoWidthRatio)
+        .putString(KEY_CROP, template.crop != null ? template.crop.left + ","
+            + template.crop.top + "," + template.crop.right + "," + template.crop.bottom : null)
+        .apply();
+    WatermarkBatchRunner.get(context).setTemplate(template);
+  }
+
+  /**
+   * The saved template, {@link WatermarkTemplate#DEFAULT} if there is none or it no longer
+   * checks.
+   */
+  static WatermarkTemplate loadTemplate(Context context) {
+    SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    String lines = prefs.getString(KEY_LINES, null);
+    if (lines == null) {
+      return WatermarkTemplate.DEFAULT;
+    }
+    WatermarkTemplate defaults = WatermarkTemplate.DEFAULT;
+    String logo = prefs.getString(KEY_LOGO, null);
+    String crop = prefs.getString(KEY_CROP, null);
+    try {
+      WatermarkTemplate template = new WatermarkTemplate(
+          lines.isEmpty()
+              ? Collections.<String>emptyList()
+              : Arrays.asList(lines.split("\n")),
+          prefs.getString(KEY_LOCATION, defaults.location),
+          prefs.getFloat(KEY_OFFSET_RATIO, defaults.offsetRatio),
+          prefs.getFloat(KEY_TEXT_SIZE_RATIO, defaults.textSizeRatio),
+          prefs.getInt(KEY_TEXT_COLOR, defaults.textColor),
+          logo != null ? Uri.parse(logo) : null,
+          prefs.getFloat(KEY_LOGO_WIDTH_RATIO, defaults.logoWidthRatio),
+          crop != null ? parseCrop(crop) : defaults.crop);
+      template.check();
+      return template;
+    } catch (IllegalArgumentException e) {
+      Log.w(TAG, "Ignoring the saved template", e);
+      return WatermarkTemplate.DEFAULT;
+    }
+  }
+
+  /**
+   * A crop saved as "left,top,right,bottom".
+   *
+   * @throws IllegalArgumentException if it is not four numbers
+   */
+  private static RectF parseCrop(String crop) {
+    String[] sides = crop.split(",");
+    if (sides.length != 4) {
+      throw new IllegalArgumentException("Invalid crop: " + crop);
+    }
+    return new RectF(Float.parseFloat(sides[0]), Float.parseFloat(sides[1]),
+        Float.parseFloat(sides[2]), Float.parseFloat(sides[3]));
+  }
+
+  /**
+   * Save the policy and use it for the batches submitted from now on. Formats per source type are
+   * not saved, the dialog does not set them.
+   */
+  static void setOutputFormatPolicy(Context context, OutputFormatPolicy policy) {
+    context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+        .edit()
+        .putString(KEY_OUTPUT_FORMAT, policy.format != null ? policy.format.name() : null)
+        .putBoolean(KEY_PROFILE, policy.profile)
+        .putInt(KEY_LOSSY_QUALITY, policy.lossyQuality)
+        .putBoolean(KEY_KEEP_LOSSLESS, policy.keepLossless)
+        .putLong(KEY_MAX_BYTES_PER_MEGAPIXEL, policy.maxBytesPerMegapixel)
+        .apply();
+    WatermarkBatchRunner.get(context).setOutputFormatPolicy(policy);
+  }
+
+  /**
+   * The saved policy, {@link OutputFormatPolicy#DEFAULT} if there is none or it is invalid.
+   */
+  static OutputFormatPolicy loadOutputFormatPolicy(Context context) {
+    SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    if (!prefs.contains(KEY_PROFILE)) {
+      return OutputFormatPolicy.DEFAULT;
+    }
+    OutputFormatPolicy defaults = OutputFormatPolicy.DEFAULT;
+    String format = prefs.getString(KEY_OUTPUT_FORMAT, null);
+    try {
+      return new OutputFormatPolicy(
+          format != null ? OutputFormat.valueOf(format) : null,
+          Collections.<String, OutputFormat>emptyMap(),
+          prefs.getBoolean(KEY_PROFILE, defaults.profile),
+          prefs.getInt(KEY_LOSSY_QUALITY, defaults.lossyQuality),
+          prefs.getBoolean(KEY_KEEP_LOSSLESS, defaults.keepLossless),
+          prefs.getLong(KEY_MAX_BYTES_PER_MEGAPIXEL, defaults.maxBytesPerMegapixel));
+    } catch (IllegalArgumentException e) {
+      Log.w(TAG, "Ignoring the saved output format policy", e);
+      return OutputFormatPolicy.DEFAULT;
+    }
+  }
+}
@@ -0,0 +1,147 @@
+package com.example.watermark;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.RectF;
+import android.net.Uri;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What the watermark says and where it goes. Each line is literal text with fields in braces:
+ * <ul>
+ * <li>{@code {date}} or {@code {date:pattern}}: capture date, a {@link java.text.SimpleDateFormat}
+ * pattern, yyyy-MM-dd by default</li>
+ * <li>{@code {make}}, {@code {model}}: camera maker and model from the EXIF</li>
+ * <li>{@code {gps}}: latitude and longitude from the EXIF</li>
+ * </ul>
+ * Doubled braces are literal braces. A line whose fields are all missing is left out.<br>
+ * A template is parsed and checked once per batch by {@link #compile}, images only fill in the
+ * resulting {@link WatermarkRenderPlan}.
+ */
+final class WatermarkTemplate {
+  static final List<String> LOCATIONS = Collections.unmodifiableList(
+      Arrays.asList("topLeft", "topRight", "bottomLeft", "bottomRight"));
+
+  /**
+   * The capture date in the bottom right corner.
+   */
+  static final WatermarkTemplate DEFAULT = new WatermarkTemplate(
+      Collections.singletonList("{date}"), "bottomRight", 0.045f, 0.035f, 0xFFFFFFFF, null, 0,
+      null);
+
+  /**
+   * Largest side the logo is decoded at, it is scaled when drawn.
+   */
+  private static final int MAX_LOGO_SIZE = 1024;
+
+  final List<String> lines;
+  final String location;
+
+  /**
+   * Distance from the image edges relative to the image width.
+   */
+  final float offsetRatio;
+
+  /**
+   * Text size relative to the image height.
+   */
+  final float textSizeRatio;
+
+  final int textColor;
+
+  /**
+   * Image drawn above the text, null for none.
+   */
+  final Uri logo;
+
+  /**
+   * Logo width relative to the image width.
+   */
+  final float logoWidthRatio;
+
+  /**
+   * Part of the image kept, relative to the image as displayed (after the EXIF rotation), null to
+   * keep it all. Only that part is decoded.
+   */
+  final RectF crop;
+
+  WatermarkTemplate(
+      List<String> lines,
+      String location,
+      float offsetRatio,
+      float textSizeRatio,
+      int textColor,
+      Uri logo,
+      float logoWidthRatio,
+      RectF crop
+  ) {
+    this.lines = Collections.unmodifiableList(new ArrayList<>(lines));
+    this.location = location;
+    this.offsetRatio = offsetRatio;
+    this.textSizeRatio = textSizeRatio;
+    this.textColor = textColor;
+    this.logo = logo;
+    this.logoWidthRatio = logoWidthRatio;
+    this.crop = crop != null ? new RectF(crop) : null;
+  }
+
+  /**
+   * Parse the lines, create the formats and load the logo.
+   *
+   * @throws IllegalArgumentException if a line, the location, a ratio or the crop is invalid
+   */
+  WatermarkRenderPlan compile(Context context) {
+    checkSettings();
+    Bitmap logoBitmap = null;
+    if (logo != null) {
+      logoBitmap =
+          BitmapUtil.decodeSampledBitmap(context, logo, MAX_LOGO_SIZE, MAX_LOGO_SIZE).bitmap;
+    }
+    return new WatermarkRenderPlan(this, logoBitmap);
+  }
+
+  /**
+   * Everything {@link #compile} checks, without loading the logo.
+   *
+   * @throws IllegalArgumentException if a line, the location, a ratio or the crop is invalid
+   */
+  void check() {
+    checkSettings();
+    new WatermarkRenderPlan(this, null);
+  }
+
+  private void checkSettings() {
+    if (!LOCATIONS.contains(location)) {
+      throw new IllegalArgumentException("Unknown location: " + location);
+    }
+    if (offsetRatio < 0 || offsetRatio >= 0.5f || textSizeRatio <= 0 || textSizeRatio >= 1) {
+      throw new IllegalArgumentException("Invalid offset or text size ratio in " + this);
+    }
+    if (logo != null && (logoWidthRatio <= 0 || logoWidthRatio > 1)) {
+      throw new IllegalArgumentException("Invalid logo width ratio in " + this);
+    }
+    if (crop != null && (crop.left < 0 || crop.left >= crop.right || crop.right > 1
+        || crop.top < 0 || crop.top >= crop.bottom || crop.bottom > 1)) {
+      throw new IllegalArgumentException("Invalid crop in " + this);
+    }
+  }
+
+  /**
+   * Every setting, so outputs made with another template can be told apart.
+   */
+  @Override public String toString() {
+    return "WatermarkTemplate{"
+        + "lines=" + lines
+        + ", location=" + location
+        + ", offsetRatio=" + offsetRatio
+        + ", textSizeRatio=" + textSizeRatio
+        + ", textColor=" + Integer.toHexString(textColor)
+        + ", logo=" + logo
+        + ", logoWidthRatio=" + logoWidthRatio
+        + ", crop=" + (crop != null ? crop.toShortString() : null)
+        + '}';
+  }
+}
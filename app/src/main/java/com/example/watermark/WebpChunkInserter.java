@@ -0,0 +1,155 @@
+package com.example.watermark;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Adds a metadata chunk (XMP or Exif) to an encoded WebP, ahead of the image data so a reader
+ * finds it without going through the pixels. The RIFF header holds the file size and a simple file
+ * (a lone VP8 or VP8L chunk) must first become an extended one with a VP8X chunk flagging the
+ * metadata, so unlike {@link PngChunkInjector} this works on the whole encoded file, which is small
+ * next to the bitmap it was encoded from.
+ */
+final class WebpChunkInserter {
+  private static final int RIFF = fourCc("RIFF");
+  private static final int WEBP = fourCc("WEBP");
+  private static final int VP8 = fourCc("VP8 ");
+  private static final int VP8L = fourCc("VP8L");
+  private static final int VP8X = fourCc("VP8X");
+  private static final int ICCP = fourCc("ICCP");
+  private static final int XMP = fourCc("XMP ");
+  private static final int EXIF = fourCc("EXIF");
+
+  private static final int FLAG_ALPHA = 0x10;
+  private static final int FLAG_EXIF = 0x08;
+  private static final int FLAG_XMP = 0x04;
+
+  /**
+   * RIFF header: "RIFF", the size of what follows and "WEBP".
+   */
+  private static final int HEADER_LENGTH = 12;
+  private static final int VP8X_LENGTH = 8 + 10;
+
+  private WebpChunkInserter() {
+  }
+
+  /**
+   * Build a complete chunk from its type and data, padded to an even length.
+   */
+  static byte[] chunk(String type, byte[] data) {
+    ByteBuffer chunk = ByteBuffer.allocate(8 + data.length + (data.length & 1))
+        .order(ByteOrder.LITTLE_ENDIAN);
+    chunk.putInt(fourCc(type)).putInt(data.length).put(data);
+    return chunk.array();
+  }
+
+  /**
+   * The WebP with {@code chunk}, an "XMP " or "EXIF" chunk from {@link #chunk}, added after the
+   * VP8X and ICC profile chunks, before the image data. Returned as is if it is not a WebP this
+   * understands.
+   */
+  static byte[] insert(byte[] webp, byte[] chunk) {
+    ByteBuffer in = ByteBuffer.wrap(webp).order(ByteOrder.LITTLE_ENDIAN);
+    if (webp.length < HEADER_LENGTH + 8 || in.getInt(0) != RIFF || in.getInt(8) != WEBP) {
+      return webp;
+    }
+    int flag = flag(ByteBuffer.wrap(chunk).order(ByteOrder.LITTLE_ENDIAN).getInt(0));
+    int first = in.getInt(HEADER_LENGTH);
+
+    byte[] vp8x = null;
+    int at = HEADER_LENGTH;
+    if (first != VP8X) {
+      int[] canvas = canvas(in, first);
+      if (canvas == null) {
+        return webp;
+      }
+      vp8x = new byte[VP8X_LENGTH];
+      ByteBuffer header = ByteBuffer.wrap(vp8x).order(ByteOrder.LITTLE_ENDIAN);
+      header.putInt(VP8X).putInt(10);
+      // flags, 3 reserved bytes, then the 24 bit width and height minus one
+      header.put((byte) (canvas[2] != 0 ? FLAG_ALPHA : 0)).put(new byte[3]);
+      putInt24(header, canvas[0] - 1);
+      putInt24(header, canvas[1] - 1);
+    } else {
+      // the ICC profile, if any, must stay right after VP8X
+      at = skipChunk(in, at);
+      if (at > 0 && at + 8 <= webp.length && in.getInt(at) == ICCP) {
+        at = skipChunk(in, at);
+      }
+      if (at < 0) {
+        return webp;
+      }
+    }
+
+    int length = webp.length + chunk.length + (vp8x != null ? vp8x.length : 0);
+    ByteBuffer out = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+    out.putInt(RIFF).putInt(length - 8).putInt(WEBP);
+    if (vp8x != null) {
+      vp8x[8] |= (byte) flag;
+      out.put(vp8x);
+    } else {
+      out.put(webp, HEADER_LENGTH, at - HEADER_LENGTH);
+      int flags = HEADER_LENGTH + 8;
+      out.put(flags, (byte) (out.get(flags) | flag));
+    }
+    out.put(chunk);
+    out.put(webp, at, webp.length - at);
+    return out.array();
+  }
+
+  /**
+   * Offset of the chunk after the one at {@code offset}, -1 if the file ends first.
+   */
+  private static int skipChunk(ByteBuffer in, int offset) {
+    if (offset + 8 > in.limit()) {
+      return -1;
+    }
+    long size = in.getInt(offset + 4) & 0xFFFFFFFFL;
+    long next = offset + 8 + size + (size & 1);
+    return next <= in.limit() ? (int) next : -1;
+  }
+
+  /**
+   * Width, height and 1 if it has alpha, of a simple file. Null if the first chunk is not a VP8 or
+   * VP8L image or is too short.
+   */
+  private static int[] canvas(ByteBuffer in, int first) {
+    final int data = HEADER_LENGTH + 8;
+    if (first == VP8L && in.limit() >= data + 5 && in.get(data) == 0x2F) {
+      // 14 bit width and height minus one, then the alpha hint
+      int bits = in.getInt(data + 1);
+      int width = (bits & 0x3FFF) + 1;
+      int height = (bits >>> 14 & 0x3FFF) + 1;
+      return new int[] { width, height, bits >>> 28 & 1 };
+    }
+    if (first == VP8 && in.limit() >= data + 10 && (in.get(data + 3) & 0xFF) == 0x9D
+        && (in.get(data + 4) & 0xFF) == 0x01 && (in.get(data + 5) & 0xFF) == 0x2A) {
+      // after the frame tag and start code, 14 bit width and height and 2 bit scales
+      int width = in.getShort(data + 6) & 0x3FFF;
+      int height = in.getShort(data + 8) & 0x3FFF;
+      return width > 0 && height > 0 ? new int[] { width, height, 0 } : null;
+    }
+    return null;
+  }
+
+  private static int flag(int type) {
+    if (type == XMP) {
+      return FLAG_XMP;
+    }
+    if (type == EXIF) {
+      return FLAG_EXIF;
+    }
+    throw new IllegalArgumentException("Not a metadata chunk: " + Integer.toHexString(type));
+  }
+
+  private static void putInt24(ByteBuffer buffer, int value) {
+    buffer.put((byte) value).put((byte) (value >>> 8)).put((byte) (value >>> 16));
+  }
+
+  /**
+   * A chunk type read as a little endian int.
+   */
+  private static int fourCc(String type) {
+    return type.charAt(0) | type.charAt(1) << 8 | type.charAt(2) << 16 | type.charAt(3) << 24;
+  }
+}
@@ -0,0 +1,109 @@
+package com.example.watermark;
+
+import android.os.Process;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared worker pools, started once by {@link WatermarkApplication} so the first batch does not pay
+ * for thread creation.
+ */
+final class WorkerPools {
+  static final int CORE_COUNT = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+  /**
+   * Decode, watermark and encode, one thread per core.
+   */
+  private static final ThreadPoolExecutor DECODE =
+      newPool("watermark-decode", CORE_COUNT, Process.THREAD_PRIORITY_BACKGROUND);
+
+  /**
+   * Storage and content provider work that should not take a decode thread.
+   */
+  private static final ThreadPoolExecutor IO =
+      newPool("watermark-io", 1, Process.THREAD_PRIORITY_BACKGROUND);
+
+  /**
+   * Reads sources ahead of the decoders, separate from {@link #IO} so a long scan does not hold it
+   * up.
+   */
+  private static final ThreadPoolExecutor PREFETCH =
+      newPool("watermark-prefetch", 1, Process.THREAD_PRIORITY_BACKGROUND);
+
+  /**
+   * Bands of a single image decoded in parallel, separate from {@link #DECODE} because decode
+   * threads wait on them.
+   */
+  private static final ThreadPoolExecutor TILES =
+      newPool("watermark-tiles", CORE_COUNT, Process.THREAD_PRIORITY_BACKGROUND);
+
+  private WorkerPools() {
+  }
+
+  static ExecutorService decode() {
+    return DECODE;
+  }
+
+  static ExecutorService io() {
+    return IO;
+  }
+
+  static ExecutorService prefetch() {
+    return PREFETCH;
+  }
+
+  static ExecutorService tiles() {
+    return TILES;
+  }
+
+  /**
+   * Workers one decode may use: once the decode queue is drained and fewer images than cores are
+   * left, the idle cores are shared between the running images.
+   */
+  static int tailParallelism() {
+    if (!DECODE.getQueue().isEmpty()) {
+      return 1;
+    }
+    int active = Math.max(1, DECODE.getActiveCount());
+    return Math.max(1, CORE_COUNT / active);
+  }
+
+  /**
+   * Start all core threads now instead of on the first submitted task.
+   */
+  static void prestart() {
+    DECODE.prestartAllCoreThreads();
+    IO.prestartAllCoreThreads();
+    PREFETCH.prestartAllCoreThreads();
+  }
+
+  private static ThreadPoolExecutor newPool(String name, int threads, int priority) {
+    ThreadPoolExecutor executor =
+        new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+            new PriorityThreadFactory(name, priority));
+    executor.allowCoreThreadTimeOut(false);
+    return executor;
+  }
+
+  private static final class PriorityThreadFactory implements ThreadFactory {
+    private final String name;
+    private final int priority;
+    private final AtomicInteger count = new AtomicInteger();
+
+    PriorityThreadFactory(String name, int priority) {
+      this.name = name;
+      this.priority = priority;
+    }
+
+    @Override public Thread newThread(Runnable runnable) {
+      return new Thread(() -> {
+        Process.setThreadPriority(priority);
+        runnable.run();
+      }, name + "-" + count.incrementAndGet());
+    }
+  }
+}
@@ -0,0 +1,499 @@
+package com.example.watermark;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructStat;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A ZIP archive read in place: the central directory is read once when the archive is opened, and
+ * each entry is streamed from the archive file whenever it is opened, nothing is extracted.<br>
+ * Entries have uris of their own, see {@link #entryUri}, so they go through the list and the batch
+ * like any other image; {@link ImageSource#forUri} opens them here. STORED entries are read with
+ * positional reads and can be rewound freely, DEFLATED ones are inflated again on every open, so
+ * {@link SourcePrefetcher} holding them in memory pays off most for those.<br>
+ * The archive has to be seekable, which local and SD card documents are. An archive changed after
+ * it was listed is read again, and the entry uris of the old listing no longer open.
+ */
+final class ZipArchive {
+  static final String SCHEME = "watermark-zip";
+  private static final String ENTRY_AUTHORITY = "entry";
+
+  private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+  private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+  private static final int END_SIGNATURE = 0x06054b50;
+  private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+  private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+
+  private static final int LOCAL_HEADER_SIZE = 30;
+  private static final int CENTRAL_HEADER_SIZE = 46;
+  private static final int END_SIZE = 22;
+  private static final int ZIP64_LOCATOR_SIZE = 20;
+  private static final int ZIP64_END_SIZE = 56;
+  private static final int MAX_COMMENT_SIZE = 0xFFFF;
+  private static final int ZIP64_EXTRA_ID = 0x0001;
+
+  private static final int FLAG_ENCRYPTED = 0x1;
+  static final int METHOD_STORED = 0;
+  static final int METHOD_DEFLATED = 8;
+
+  private static final int INFLATE_BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * The latest read of each archive. A read is closed once the archive changes, it no longer
+   * describes the file.
+   */
+  // guarded by ZipArchive.class
+  private static final Map<Uri, ZipArchive> archives = new HashMap<>();
+
+  final Uri uri;
+
+  /**
+   * Size and modification time of the file when it was read.
+   */
+  final String version;
+  private final ParcelFileDescriptor descriptor;
+  private final FileChannel channel;
+  private final Map<String, Entry> entries;
+
+  private ZipArchive(Uri uri, String version, ParcelFileDescriptor descriptor,
+      FileChannel channel, Map<String, Entry> entries) {
+    this.uri = uri;
+    this.version = version;
+    this.descriptor = descriptor;
+    this.channel = channel;
+    this.entries = entries;
+  }
+
+  /**
+   * The archive at the uri as it is now, read again only if it changed since the last read.
+   *
+   * @throws IOException if it cannot be opened, is not seekable or is not a ZIP archive
+   */
+  static synchronized ZipArchive open(ContentResolver resolver, Uri uri) throws IOException {
+    ParcelFileDescriptor descriptor = resolver.openFileDescriptor(uri, "r");
+    if (descriptor == null) {
+      throw new FileNotFoundException("Cannot open " + uri);
+    }
+    ZipArchive cached = archives.get(uri);
+    try {
+      String version = version(descriptor);
+      if (cached != null && cached.version.equals(version) && cached.isCurrent()) {
+        BitmapUtil.closeSafe(descriptor);
+        return cached;
+      }
+      ZipArchive archive = read(uri, version, descriptor);
+      archives.put(uri, archive);
+      if (cached != null) {
+        cached.close();
+      }
+      return archive;
+    } catch (IOException | RuntimeException e) {
+      BitmapUtil.closeSafe(descriptor);
+      throw e;
+    }
+  }
+
+  /**
+   * The archive at the uri as it was when it had the given version.
+   *
+   * @throws FileNotFoundException if it changed since
+   */
+  private static synchronized ZipArchive open(ContentResolver resolver, Uri uri, String version)
+      throws IOException {
+    ZipArchive cached = archives.get(uri);
+    // one stat of the open file, the common case
+    if (cached != null && cached.version.equals(version) && cached.isCurrent()) {
+      return cached;
+    }
+    ZipArchive archive = open(resolver, uri);
+    if (!archive.version.equals(version)) {
+      throw new FileNotFoundException(uri + " changed since its entries were listed");
+    }
+    return archive;
+  }
+
+  static boolean isEntry(Uri uri) {
+    return SCHEME.equals(uri.getScheme());
+  }
+
+  /**
+   * The uri of an entry: the archive uri, its version and the entry name, each one encoded path
+   * segment, so names with any slashes in them come back unchanged.
+   */
+  Uri entryUri(String name) {
+    return new Uri.Builder()
+        .scheme(SCHEME)
+        .authority(ENTRY_AUTHORITY)
+        .appendPath(uri.toString())
+        .appendPath(version)
+        .appendPath(name)
+        .build();
+  }
+
+  /**
+   * The source of an entry uri, the archive is opened on the first read.
+   */
+  static ImageSource source(final ContentResolver resolver, final Uri entryUri) {
+    return new ImageSource() {
+      @Override public Uri getUri() {
+        return entryUri;
+      }
+
+      @Override public InputStream open() throws IOException {
+        List<String> segments = entryUri.getPathSegments();
+        if (segments.size() != 3) {
+          throw new FileNotFoundException("Not an archive entry: " + entryUri);
+        }
+        ZipArchive archive =
+            ZipArchive.open(resolver, Uri.parse(segments.get(0)), segments.get(1));
+        return archive.open(segments.get(2));
+      }
+
+      @Override public String toString() {
+        return entryUri.toString();
+      }
+    };
+  }
+
+  /**
+   * The file entries in central directory order.
+   */
+  List<Entry> entries() {
+    return new ArrayList<>(entries.values());
+  }
+
+  /**
+   * A new stream of the uncompressed entry, the caller closes it.
+   */
+  InputStream open(String name) throws IOException {
+    Entry entry = entries.get(name);
+    if (entry == null) {
+      throw new FileNotFoundException("No entry " + name + " in " + uri);
+    }
+    long dataOffset = entry.dataOffset;
+    if (dataOffset < 0) {
+      // the local header may have another extra field than the central one
+      ByteBuffer header = readFully(entry.localHeaderOffset, LOCAL_HEADER_SIZE);
+      if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+        throw new IOException("Bad local header of " + name + " in " + uri);
+      }
+      dataOffset = entry.localHeaderOffset + LOCAL_HEADER_SIZE
+          + (header.getShort(26) & 0xFFFF) + (header.getShort(28) & 0xFFFF);
+      entry.dataOffset = dataOffset;
+    }
+    InputStream data = new SliceInputStream(channel, dataOffset, entry.compressedSize);
+    return entry.method == METHOD_STORED ? data : new EntryInflaterStream(data);
+  }
+
+  /**
+   * Read the central directory, the archive owns the descriptor from then on.
+   */
+  private static ZipArchive read(Uri uri, String version, ParcelFileDescriptor descriptor)
+      throws IOException {
+    // the descriptor owns the file, the channel is not closed on its own
+    FileChannel channel = new FileInputStream(descriptor.getFileDescriptor()).getChannel();
+    ZipArchive archive =
+        new ZipArchive(uri, version, descriptor, channel, new LinkedHashMap<>());
+    archive.readCentralDirectory();
+    return archive;
+  }
+
+  private static String version(ParcelFileDescriptor descriptor) throws IOException {
+    try {
+      StructStat stat = Os.fstat(descriptor.getFileDescriptor());
+      return stat.st_size + "-" + stat.st_mtime;
+    } catch (ErrnoException e) {
+      throw new IOException("Cannot stat an archive", e);
+    }
+  }
+
+  /**
+   * Whether the file was not written to since it was read. Replacing the file is fine, the
+   * descriptor still reads the old one.
+   */
+  private boolean isCurrent() {
+    try {
+      return version(descriptor).equals(version);
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Streams of its entries still open fail from now on.
+   */
+  private void close() {
+    BitmapUtil.closeSafe(descriptor);
+  }
+
+  private void readCentralDirectory() throws IOException {
+    final long size = channel.size();
+    if (size < END_SIZE) {
+      throw new IOException("Not a ZIP archive: " + uri);
+    }
+    // the end record is followed by a comment of up to 64K
+    int tailSize = (int) Math.min(size, END_SIZE + MAX_COMMENT_SIZE);
+    ByteBuffer tail = readFully(size - tailSize, tailSize);
+    int end = -1;
+    for (int i = tailSize - END_SIZE; i >= 0; i--) {
+      if (tail.getInt(i) == END_SIGNATURE) {
+        end = i;
+        break;
+      }
+    }
+    if (end < 0) {
+      throw new IOException("No end of central directory in " + uri);
+    }
+    long count = tail.getShort(end + 10) & 0xFFFF;
+    long directorySize = tail.getInt(end + 12) & 0xFFFFFFFFL;
+    long directoryOffset = tail.getInt(end + 16) & 0xFFFFFFFFL;
+
+    long endOffset = size - tailSize + end;
+    if (endOffset >= ZIP64_LOCATOR_SIZE) {
+      ByteBuffer locator = readFully(endOffset - ZIP64_LOCATOR_SIZE, ZIP64_LOCATOR_SIZE);
+      if (locator.getInt(0) == ZIP64_LOCATOR_SIGNATURE) {
+        // more than 65535 entries or more than 4GB, the real values are in the zip64 end record
+        ByteBuffer end64 = readFully(locator.getLong(8), ZIP64_END_SIZE);
+        if (end64.getInt(0) != ZIP64_END_SIGNATURE) {
+          throw new IOException("Bad zip64 end of central directory in " + uri);
+        }
+        count = end64.getLong(32);
+        directorySize = end64.getLong(40);
+        directoryOffset = end64.getLong(48);
+      }
+    }
+    if (directorySize > Integer.MAX_VALUE || directoryOffset + directorySize > size) {
+      throw new IOException("Bad central directory in " + uri);
+    }
+
+    ByteBuffer directory = readFully(directoryOffset, (int) directorySize);
+    int position = 0;
+    for (long i = 0; i < count; i++) {
+      if (position + CENTRAL_HEADER_SIZE > directory.limit()
+          || directory.getInt(position) != CENTRAL_HEADER_SIGNATURE) {
+        throw new IOException("Bad central directory entry " + i + " in " + uri);
+      }
+      int flags = directory.getShort(position + 8) & 0xFFFF;
+      int method = directory.getShort(position + 10) & 0xFFFF;
+      int time = directory.getShort(position + 12) & 0xFFFF;
+      int date = directory.getShort(position + 14) & 0xFFFF;
+      long compressedSize = directory.getInt(position + 20) & 0xFFFFFFFFL;
+      long uncompressedSize = directory.getInt(position + 24) & 0xFFFFFFFFL;
+      int nameLength = directory.getShort(position + 28) & 0xFFFF;
+      int extraLength = directory.getShort(position + 30) & 0xFFFF;
+      int commentLength = directory.getShort(position + 32) & 0xFFFF;
+      long localHeaderOffset = directory.getInt(position + 42) & 0xFFFFFFFFL;
+
+      int nameStart = position + CENTRAL_HEADER_SIZE;
+      int extraStart = nameStart + nameLength;
+      if (extraStart + extraLength + commentLength > directory.limit()) {
+        throw new IOException("Bad central directory entry " + i + " in " + uri);
+      }
+      byte[] nameBytes = new byte[nameLength];
+      for (int j = 0; j < nameLength; j++) {
+        nameBytes[j] = directory.get(nameStart + j);
+      }
+      String name = new String(nameBytes, StandardCharsets.UTF_8);
+
+      // sizes and offset that do not fit 32 bits are in the zip64 extra field, in this order
+      int extra = extraStart;
+      while (extra + 4 <= extraStart + extraLength) {
+        int id = directory.getShort(extra) & 0xFFFF;
+        int length = directory.getShort(extra + 2) & 0xFFFF;
+        if (id == ZIP64_EXTRA_ID) {
+          int field = extra + 4;
+          if (uncompressedSize == 0xFFFFFFFFL && field + 8 <= extra + 4 + length) {
+            uncompressedSize = directory.getLong(field);
+            field += 8;
+          }
+          if (compressedSize == 0xFFFFFFFFL && field + 8 <= extra + 4 + length) {
+            compressedSize = directory.getLong(field);
+            field += 8;
+          }
+          if (localHeaderOffset == 0xFFFFFFFFL && field + 8 <= extra + 4 + length) {
+            localHeaderOffset = directory.getLong(field);
+          }
+          break;
+        }
+        extra += 4 + length;
+      }
+      position = extraStart + extraLength + commentLength;
+
+      boolean directoryEntry = name.endsWith("/");
+      boolean readable = (flags & FLAG_ENCRYPTED) == 0
+          && (method == METHOD_STORED || method == METHOD_DEFLATED);
+      if (!directoryEntry && readable) {
+        entries.put(name, new Entry(name, method, compressedSize, uncompressedSize,
+            localHeaderOffset, dosToMillis(date, time)));
+      }
+    }
+  }
+
+  private ByteBuffer readFully(long offset, int length) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, offset + buffer.position()) < 0) {
+        throw new EOFException("Unexpected end of " + uri);
+      }
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  /**
+   * MS-DOS date and time, local time with 2 second steps.
+   */
+  private static long dosToMillis(int date, int time) {
+    if (date == 0) {
+      return 0;
+    }
+    Calendar calendar = Calendar.getInstance();
+    calendar.clear();
+    calendar.set(((date >> 9) & 0x7F) + 1980, ((date >> 5) & 0xF) - 1, date & 0x1F,
+        (time >> 11) & 0x1F, (time >> 5) & 0x3F, (time & 0x1F) * 2);
+    return calendar.getTimeInMillis();
+  }
+
+  /**
+   * One file in the archive.
+   */
+  static final class Entry {
+    final String name;
+    final int method;
+    final long compressedSize;
+    final long size;
+    final long localHeaderOffset;
+    final long modifiedMillis;
+
+    /**
+     * Start of the data, found from the local header on the first open.
+     */
+    volatile long dataOffset = -1;
+
+    Entry(String name, int method, long compressedSize, long size, long localHeaderOffset,
+        long modifiedMillis) {
+      this.name = name;
+      this.method = method;
+      this.compressedSize = compressedSize;
+      this.size = size;
+      this.localHeaderOffset = localHeaderOffset;
+      this.modifiedMillis = modifiedMillis;
+    }
+  }
+
+  /**
+   * A range of the archive read with positional reads, so streams of several entries share the
+   * channel. Supports mark at any point, so {@link android.graphics.BitmapFactory} does not wrap a
+   * STORED entry in a buffered copy.
+   */
+  private static final class SliceInputStream extends InputStream {
+    private final FileChannel channel;
+    private final long end;
+    private long position;
+    private long mark;
+
+    SliceInputStream(FileChannel channel, long start, long length) {
+      this.channel = channel;
+      this.end = start + length;
+      this.position = start;
+      this.mark = start;
+    }
+
+    @Override public int read() throws IOException {
+      byte[] one = new byte[1];
+      return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+    }
+
+    @Override public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      if (position >= end) {
+        return -1;
+      }
+      len = (int) Math.min(len, end - position);
+      int read = channel.read(ByteBuffer.wrap(b, off, len), position);
+      if (read < 0) {
+        throw new EOFException("Archive ends inside an entry");
+      }
+      position += read;
+      return read;
+    }
+
+    @Override public long skip(long n) {
+      long skipped = Math.max(0, Math.min(n, end - position));
+      position += skipped;
+      return skipped;
+    }
+
+    @Override public int available() {
+      return (int) Math.min(Integer.MAX_VALUE, end - position);
+    }
+
+    @Override public boolean markSupported() {
+      return true;
+    }
+
+    @Override public synchronized void mark(int readLimit) {
+      mark = position;
+    }
+
+    @Override public synchronized void reset() {
+      position = mark;
+    }
+  }
+
+  /**
+   * Inflates raw DEFLATE data and ends its inflater on close.
+   */
+  private static final class EntryInflaterStream extends InflaterInputStream {
+    private boolean eof;
+    private boolean closed;
+
+    EntryInflaterStream(InputStream in) {
+      super(in, new Inflater(true), INFLATE_BUFFER_SIZE);
+    }
+
+    @Override protected void fill() throws IOException {
+      if (eof) {
+        throw new EOFException("Unexpected end of a deflated entry");
+      }
+      len = in.read(buf, 0, buf.length);
+      if (len < 0) {
+        // a raw inflater may need one byte past the data to finish, as java.util.zip.ZipFile does
+        buf[0] = 0;
+        len = 1;
+        eof = true;
+      }
+      inf.setInput(buf, 0, len);
+    }
+
+    @Override public void close() throws IOException {
+      if (!closed) {
+        closed = true;
+        inf.end();
+        super.close();
+      }
+    }
+  }
+}
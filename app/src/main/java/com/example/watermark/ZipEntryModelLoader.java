@@ -0,0 +1,89 @@
+package com.example.watermark;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import androidx.annotation.NonNull;
+import com.bumptech.glide.Priority;
+import com.bumptech.glide.load.DataSource;
+import com.bumptech.glide.load.Options;
+import com.bumptech.glide.load.data.DataFetcher;
+import com.bumptech.glide.load.model.ModelLoader;
+import com.bumptech.glide.load.model.ModelLoaderFactory;
+import com.bumptech.glide.load.model.MultiModelLoaderFactory;
+import com.bumptech.glide.signature.ObjectKey;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Lets Glide load the thumbnails of {@link ZipArchive} entries, which have no content provider
+ * behind their uris, by reading them through {@link ImageSource#forUri}.
+ */
+final class ZipEntryModelLoader implements ModelLoader<Uri, InputStream> {
+  private final ContentResolver resolver;
+
+  ZipEntryModelLoader(ContentResolver resolver) {
+    this.resolver = resolver;
+  }
+
+  @Override public LoadData<InputStream> buildLoadData(@NonNull Uri model, int width, int height,
+      @NonNull Options options) {
+    // the uri holds the archive version, a changed archive gets new keys
+    return new LoadData<>(new ObjectKey(model),
+        new EntryFetcher(ImageSource.forUri(resolver, model)));
+  }
+
+  @Override public boolean handles(@NonNull Uri model) {
+    return ZipArchive.isEntry(model);
+  }
+
+  static final class Factory implements ModelLoaderFactory<Uri, InputStream> {
+    private final ContentResolver resolver;
+
+    Factory(ContentResolver resolver) {
+      this.resolver = resolver;
+    }
+
+    @NonNull @Override
+    public ModelLoader<Uri, InputStream> build(@NonNull MultiModelLoaderFactory multiFactory) {
+      return new ZipEntryModelLoader(resolver);
+    }
+
+    @Override public void teardown() {
+    }
+  }
+
+  private static final class EntryFetcher implements DataFetcher<InputStream> {
+    private final ImageSource source;
+    private InputStream stream;
+
+    EntryFetcher(ImageSource source) {
+      this.source = source;
+    }
+
+    @Override public void loadData(@NonNull Priority priority,
+        @NonNull DataCallback<? super InputStream> callback) {
+      try {
+        stream = source.open();
+        callback.onDataReady(stream);
+      } catch (IOException e) {
+        callback.onLoadFailed(e);
+      }
+    }
+
+    @Override public void cleanup() {
+      BitmapUtil.closeSafe(stream);
+    }
+
+    @Override public void cancel() {
+      // the open is short, nothing to interrupt
+    }
+
+    @NonNull @Override public Class<InputStream> getDataClass() {
+      return InputStream.class;
+    }
+
+    @NonNull @Override public DataSource getDataSource() {
+      return DataSource.LOCAL;
+    }
+  }
+}
@@ -0,0 +1,167 @@
+package com.example.watermark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Local tests of the Exif patching, on hand built Exif segments laid out like camera output: IFD0,
+ * the Exif IFD, IFD1 and the thumbnail last.
+ */
+public class JpegMetadataTest {
+  private static final int ENTRY_SIZE = 12;
+  private static final byte[] THUMBNAIL = { (byte) 0xFF, (byte) 0xD8, 1, 2, 3, 4, (byte) 0xFF,
+      (byte) 0xD9 };
+  private static final int MAKER_NOTE_LENGTH = 8;
+
+  /**
+   * Offsets in the TIFF data, which starts after "Exif\0\0".
+   */
+  private static final int IFD0 = 8;
+  private static final int EXIF_IFD = IFD0 + 2 + 2 * ENTRY_SIZE + 4;
+
+  private static int ifd1(boolean makerNote) {
+    return EXIF_IFD + 2 + (makerNote ? 3 : 2) * ENTRY_SIZE + 4;
+  }
+
+  private static int thumbnail(boolean makerNote) {
+    return ifd1(makerNote) + 2 + 2 * ENTRY_SIZE + 4;
+  }
+
+  /**
+   * An Exif payload with orientation 6 and a 4000x3000 PixelX/YDimension. With {@code makerNote}
+   * the Exif IFD also points to a maker note stored after the thumbnail.
+   */
+  private static byte[] exif(ByteOrder order, boolean makerNote) {
+    int thumbnail = thumbnail(makerNote);
+    int makerNoteOffset = thumbnail + THUMBNAIL.length;
+    int end = makerNoteOffset + (makerNote ? MAKER_NOTE_LENGTH : 0);
+    ByteBuffer buffer = ByteBuffer.allocate(6 + end).order(order);
+    buffer.put("Exif\0\0".getBytes(StandardCharsets.US_ASCII));
+    byte byteOrder = (byte) (order == ByteOrder.LITTLE_ENDIAN ? 'I' : 'M');
+    buffer.put(byteOrder).put(byteOrder).putShort((short) 42).putInt(IFD0);
+
+    buffer.putShort((short) 2);
+    entry(buffer, 0x0112, 3, 1, 6);
+    entry(buffer, 0x8769, 4, 1, EXIF_IFD);
+    buffer.putInt(ifd1(makerNote));
+
+    buffer.putShort((short) (makerNote ? 3 : 2));
+    entry(buffer, 0xA002, 4, 1, 4000);
+    entry(buffer, 0xA003, 3, 1, 3000);
+    if (makerNote) {
+      entry(buffer, 0x927C, 7, MAKER_NOTE_LENGTH, makerNoteOffset);
+    }
+    buffer.putInt(0);
+
+    buffer.putShort((short) 2);
+    entry(buffer, 0x0201, 4, 1, thumbnail);
+    entry(buffer, 0x0202, 4, 1, THUMBNAIL.length);
+    buffer.putInt(0);
+
+    buffer.put(THUMBNAIL);
+    for (int i = 0; makerNote && i < MAKER_NOTE_LENGTH; i++) {
+      buffer.put((byte) 7);
+    }
+    return buffer.array();
+  }
+
+  /**
+   * A value that fits is stored left-justified in the 4 byte field, whatever the byte order.
+   */
+  private static void entry(ByteBuffer buffer, int tag, int type, int count, int value) {
+    buffer.putShort((short) tag).putShort((short) type).putInt(count);
+    if (type == 3) {
+      buffer.putShort((short) value).putShort((short) 0);
+    } else {
+      buffer.putInt(value);
+    }
+  }
+
+  /**
+   * The patched payload of the Exif segment, for a JPEG header holding {@code exif}.
+   */
+  private static ByteBuffer patched(byte[] exif, boolean resetOrientation, ByteOrder order)
+      throws IOException {
+    ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+    jpeg.write(0xFF);
+    jpeg.write(0xD8);
+    byte[] segment = JpegSegmentInjector.segment(0xE1, exif);
+    jpeg.write(segment, 0, segment.length);
+    // the header ends at the first segment that is not APPn
+    jpeg.write(new byte[] { (byte) 0xFF, (byte) 0xDB, 0, 2 }, 0, 4);
+
+    List<byte[]> segments = JpegMetadata.read(new ByteArrayInputStream(jpeg.toByteArray()))
+        .segments(resetOrientation, 1500, 2000);
+    assertEquals(1, segments.size());
+    byte[] patched = segments.get(0);
+    // offsets in the buffer are TIFF offsets, past the segment header and "Exif\0\0"
+    return ByteBuffer.wrap(patched, 10, patched.length - 10).slice().order(order);
+  }
+
+  private static int value(ByteBuffer tiff, int ifd, int index, boolean isShort) {
+    int field = ifd + 2 + index * ENTRY_SIZE + 8;
+    return isShort ? tiff.getShort(field) & 0xFFFF : tiff.getInt(field);
+  }
+
+  private void patchesTheIfds(ByteOrder order) throws IOException {
+    ByteBuffer tiff = patched(exif(order, false), true, order);
+    assertEquals(1, value(tiff, IFD0, 0, true));
+    assertEquals(1500, value(tiff, EXIF_IFD, 0, false));
+    assertEquals(2000, value(tiff, EXIF_IFD, 1, true));
+    // IFD1 is unlinked and cut off with the thumbnail behind it
+    assertEquals(0, tiff.getInt(IFD0 + 2 + 2 * ENTRY_SIZE));
+    assertEquals(ifd1(false), tiff.remaining());
+  }
+
+  @Test
+  public void patchesBigEndianExif() throws IOException {
+    patchesTheIfds(ByteOrder.BIG_ENDIAN);
+  }
+
+  @Test
+  public void patchesLittleEndianExif() throws IOException {
+    patchesTheIfds(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  @Test
+  public void keepsTheOrientationOfUnrotatedPixels() throws IOException {
+    ByteBuffer tiff = patched(exif(ByteOrder.BIG_ENDIAN, false), false, ByteOrder.BIG_ENDIAN);
+    assertEquals(6, value(tiff, IFD0, 0, true));
+  }
+
+  @Test
+  public void blanksTheThumbnailWhenDataFollowsIt() throws IOException {
+    ByteOrder order = ByteOrder.LITTLE_ENDIAN;
+    byte[] exif = exif(order, true);
+    ByteBuffer tiff = patched(exif, true, order);
+    assertEquals(exif.length - 6, tiff.remaining());
+    assertEquals(0, tiff.getInt(IFD0 + 2 + 2 * ENTRY_SIZE));
+    int thumbnail = thumbnail(true);
+    for (int i = 0; i < THUMBNAIL.length; i++) {
+      assertEquals(0, tiff.get(thumbnail + i));
+    }
+    // the maker note behind it is intact
+    for (int i = 0; i < MAKER_NOTE_LENGTH; i++) {
+      assertEquals(7, tiff.get(thumbnail + THUMBNAIL.length + i));
+    }
+  }
+
+  @Test
+  public void copiesMalformedExifAsIs() throws IOException {
+    ByteOrder order = ByteOrder.BIG_ENDIAN;
+    byte[] exif = exif(order, false);
+    // IFD0 past the end of the segment
+    ByteBuffer.wrap(exif).putInt(10, 0x7FFF);
+    ByteBuffer tiff = patched(exif, true, order);
+    assertEquals(exif.length - 6, tiff.remaining());
+    assertEquals(6, value(tiff, IFD0, 0, true));
+  }
+}
@@ -0,0 +1,122 @@
+package com.example.watermark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import javax.imageio.ImageIO;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Local tests of the segment injection, on JPEGs from {@link StripJpegEncoder}.
+ */
+public class JpegSegmentInjectorTest {
+  private static final byte[] COMMENT = JpegSegmentInjector.segment(0xEC, new byte[] { 1, 2, 3 });
+
+  /**
+   * A small JPEG with the JFIF segment and, for orientations other than 1, an Exif segment.
+   */
+  static byte[] jpeg(int exifOrientation) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    StripJpegEncoder encoder = new StripJpegEncoder(out, 24, 16, 80);
+    encoder.writeHeader(exifOrientation);
+    encoder.writeRows(new int[24 * 16], 0, 24, 16);
+    encoder.finish();
+    return out.toByteArray();
+  }
+
+  /**
+   * Runs {@code jpeg} through an injector, {@code chunk} bytes per write.
+   */
+  static byte[] inject(byte[] jpeg, List<byte[]> segments,
+      JpegSegmentInjector.SegmentFilter filter, int chunk) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    JpegSegmentInjector injector = new JpegSegmentInjector(out, segments, filter);
+    for (int i = 0; i < jpeg.length; i += chunk) {
+      int count = Math.min(chunk, jpeg.length - i);
+      if (count == 1) {
+        injector.write(jpeg[i]);
+      } else {
+        injector.write(jpeg, i, count);
+      }
+    }
+    injector.close();
+    return out.toByteArray();
+  }
+
+  private static byte[] concat(byte[]... parts) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (byte[] part : parts) {
+      out.write(part, 0, part.length);
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Length of SOI plus the JFIF segment the encoder starts with.
+   */
+  private static int headerLength(byte[] jpeg) {
+    return 4 + ((jpeg[4] & 0xFF) << 8 | (jpeg[5] & 0xFF));
+  }
+
+  @Test
+  public void injectsAfterTheJfifSegment() throws IOException {
+    byte[] jpeg = jpeg(1);
+    int header = headerLength(jpeg);
+    byte[] expected = concat(Arrays.copyOf(jpeg, header), COMMENT,
+        Arrays.copyOfRange(jpeg, header, jpeg.length));
+    assertArrayEquals(expected, inject(jpeg, Collections.singletonList(COMMENT), null, 1));
+    assertArrayEquals(expected, inject(jpeg, Collections.singletonList(COMMENT), null, 7));
+    assertArrayEquals(expected,
+        inject(jpeg, Collections.singletonList(COMMENT), null, jpeg.length));
+    assertNotNull(ImageIO.read(new ByteArrayInputStream(expected)));
+  }
+
+  @Test
+  public void injectsBeforeTheEncodersOtherSegments() throws IOException {
+    byte[] jpeg = jpeg(6);
+    int header = headerLength(jpeg);
+    byte[] expected = concat(Arrays.copyOf(jpeg, header), COMMENT,
+        Arrays.copyOfRange(jpeg, header, jpeg.length));
+    assertArrayEquals(expected, inject(jpeg, Collections.singletonList(COMMENT), null, 5));
+  }
+
+  @Test
+  public void filterDropsTheEncodersSegments() throws IOException {
+    byte[] jpeg = jpeg(6);
+    int header = headerLength(jpeg);
+    int exifLength = StripJpegEncoder.exifOrientationSegment(6).length;
+    byte[] expected = concat(Arrays.copyOf(jpeg, header), COMMENT,
+        Arrays.copyOfRange(jpeg, header + exifLength, jpeg.length));
+    JpegSegmentInjector.SegmentFilter dropExif = (marker, payload) -> marker != 0xE1;
+    assertArrayEquals(expected,
+        inject(jpeg, Collections.singletonList(COMMENT), dropExif, 3));
+  }
+
+  @Test
+  public void passesOtherFormatsThrough() throws IOException {
+    byte[] png = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n', 0, 0, 0, 0 };
+    assertArrayEquals(png, inject(png, Collections.singletonList(COMMENT), null, 1));
+    assertArrayEquals(png, inject(png, Collections.singletonList(COMMENT), null, png.length));
+  }
+
+  @Test
+  public void buildsTheSegmentHeader() {
+    byte[] segment = JpegSegmentInjector.segment(0xE1, new byte[300]);
+    assertEquals(304, segment.length);
+    assertEquals(0xFF, segment[0] & 0xFF);
+    assertEquals(0xE1, segment[1] & 0xFF);
+    assertEquals(302, (segment[2] & 0xFF) << 8 | (segment[3] & 0xFF));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsSegmentsOverTheLengthLimit() {
+    JpegSegmentInjector.segment(0xE1, new byte[0xFFFE]);
+  }
+}
@@ -0,0 +1,127 @@
+package com.example.watermark;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import javax.imageio.ImageIO;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local tests of the processed marker, written and found again in a JPEG, PNG or WebP.
+ */
+public class ProcessedMarkerTest {
+
+  private static final String HASH = ProcessedMarker.parametersHash("template");
+
+  private static boolean isProcessed(byte[] data) throws IOException {
+    return ProcessedMarker.isProcessed(new ByteArrayInputStream(data), HASH);
+  }
+
+  private static byte[] marked(int exifOrientation) throws IOException {
+    byte[] segment = ProcessedMarker.segment(HASH);
+    return JpegSegmentInjectorTest.inject(JpegSegmentInjectorTest.jpeg(exifOrientation),
+        Collections.singletonList(segment), null, 4096);
+  }
+
+  @Test
+  public void findsTheMarker() throws IOException {
+    assertTrue(isProcessed(marked(1)));
+  }
+
+  @Test
+  public void findsTheMarkerAfterAnExifSegment() throws IOException {
+    byte[] segment = ProcessedMarker.segment(HASH);
+    byte[] exif = JpegSegmentInjector.segment(0xE1, new byte[40_000]);
+    byte[] jpeg = JpegSegmentInjectorTest.inject(JpegSegmentInjectorTest.jpeg(1),
+        Arrays.asList(exif, segment), null, 4096);
+    assertTrue(isProcessed(jpeg));
+  }
+
+  @Test
+  public void originalsAreNotProcessed() throws IOException {
+    assertFalse(isProcessed(JpegSegmentInjectorTest.jpeg(1)));
+    assertFalse(isProcessed(JpegSegmentInjectorTest.jpeg(6)));
+  }
+
+  @Test
+  public void otherXmpIsNotTheMarker() throws IOException {
+    byte[] xmp = "http://ns.adobe.com/xap/1.0/\0<x:xmpmeta xmlns:x=\"adobe:ns:meta/\"/>"
+        .getBytes("UTF-8");
+    byte[] jpeg = JpegSegmentInjectorTest.inject(JpegSegmentInjectorTest.jpeg(1),
+        Collections.singletonList(JpegSegmentInjector.segment(0xE1, xmp)), null, 4096);
+    assertFalse(isProcessed(jpeg));
+  }
+
+  @Test
+  public void truncatedOrOtherFilesAreNotProcessed() throws IOException {
+    byte[] jpeg = marked(1);
+    assertFalse(isProcessed(Arrays.copyOf(jpeg, 40)));
+    assertFalse(isProcessed(new byte[0]));
+    assertFalse(isProcessed(new byte[] { (byte) 0x89, 'P', 'N', 'G' }));
+  }
+
+  private static byte[] png() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ImageIO.write(new BufferedImage(20, 10, BufferedImage.TYPE_INT_RGB), "png", out);
+    return out.toByteArray();
+  }
+
+  @Test
+  public void findsTheMarkerInAPng() throws IOException {
+    byte[] png = png();
+    assertFalse(isProcessed(png));
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    OutputStream injector = new PngChunkInjector(out, Collections.singletonList(
+        ProcessedMarker.pngChunk(HASH)));
+    // in pieces, as an encoder writes
+    injector.write(png, 0, 5);
+    injector.write(png[5]);
+    injector.write(png, 6, png.length - 6);
+    injector.close();
+    byte[] marked = out.toByteArray();
+    assertTrue(isProcessed(marked));
+    // the chunk is valid, decoders still read the image
+    BufferedImage image = ImageIO.read(new ByteArrayInputStream(marked));
+    assertNotNull(image);
+    assertEquals(20, image.getWidth());
+  }
+
+  @Test
+  public void findsTheMarkerInAWebp() throws IOException {
+    byte[] webp = WebpChunkInserterTest.losslessWebp(100, 50);
+    assertFalse(isProcessed(webp));
+    byte[] marked = WebpChunkInserter.insert(webp, ProcessedMarker.webpChunk(HASH));
+    assertTrue(isProcessed(marked));
+    // found ahead of the image data, which is not read
+    assertTrue(isProcessed(Arrays.copyOf(marked, marked.length - 4)));
+  }
+
+  @Test
+  public void outputsOfOtherSettingsAreNotProcessed() throws IOException {
+    String other = ProcessedMarker.parametersHash("other template");
+    assertFalse(ProcessedMarker.isProcessed(new ByteArrayInputStream(marked(1)), other));
+    byte[] webp = WebpChunkInserter.insert(WebpChunkInserterTest.losslessWebp(100, 50),
+        ProcessedMarker.webpChunk(HASH));
+    assertFalse(ProcessedMarker.isProcessed(new ByteArrayInputStream(webp), other));
+  }
+
+  @Test
+  public void hashDependsOnEveryParameter() {
+    assertEquals(ProcessedMarker.parametersHash("a", 1), ProcessedMarker.parametersHash("a", 1));
+    assertFalse(ProcessedMarker.parametersHash("a", 1)
+        .equals(ProcessedMarker.parametersHash("a", 2)));
+    // the separator keeps the parameters apart
+    assertFalse(ProcessedMarker.parametersHash("ab", "c")
+        .equals(ProcessedMarker.parametersHash("a", "bc")));
+  }
+}
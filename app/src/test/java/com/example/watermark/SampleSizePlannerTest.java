@@ -0,0 +1,53 @@
+package com.example.watermark;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Local tests of the sample size planning, with the available memory given explicitly.
+ */
+public class SampleSizePlannerTest {
+  private static final int WIDTH = 4000;
+  private static final int HEIGHT = 3000;
+
+  /**
+   * Bytes of the full resolution bitmap; a null config counts as ARGB_8888.
+   */
+  private static final long FULL_BYTES = (long) WIDTH * HEIGHT * 4;
+
+  @Test
+  public void fullResolutionWhenHalfTheMemoryFits() {
+    SampleSizePlanner.Plan plan =
+        SampleSizePlanner.plan(WIDTH, HEIGHT, null, 1, 16, 0, FULL_BYTES * 2);
+    assertEquals(1, plan.sampleSize);
+    assertEquals(FULL_BYTES, plan.byteCount);
+  }
+
+  @Test
+  public void fallsBackOneByteBelowTheBoundary() {
+    SampleSizePlanner.Plan plan =
+        SampleSizePlanner.plan(WIDTH, HEIGHT, null, 1, 16, 0, FULL_BYTES * 2 - 2);
+    assertEquals(2, plan.sampleSize);
+    assertEquals(FULL_BYTES / 4, plan.byteCount);
+  }
+
+  @Test
+  public void keepsTheRequestedSampleSize() {
+    SampleSizePlanner.Plan plan =
+        SampleSizePlanner.plan(WIDTH, HEIGHT, null, 4, 16, 0, FULL_BYTES * 2);
+    assertEquals(4, plan.sampleSize);
+  }
+
+  @Test
+  public void textureSizeLimitsTheSides() {
+    SampleSizePlanner.Plan plan =
+        SampleSizePlanner.plan(WIDTH, HEIGHT, null, 1, 16, 2048, FULL_BYTES * 2);
+    assertEquals(2, plan.sampleSize);
+  }
+
+  @Test(expected = SampleSizePlanner.NoFitException.class)
+  public void throwsWhenNothingUpToTheLimitFits() {
+    SampleSizePlanner.plan(WIDTH, HEIGHT, null, 1, 2, 0, FULL_BYTES / 4);
+  }
+}
@@ -0,0 +1,127 @@
+package com.example.watermark;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import javax.imageio.ImageIO;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local tests of the strip encoder, decoding its output with javax.imageio.
+ */
+public class StripJpegEncoderTest {
+  // not multiples of the 16 pixel MCU, so the edge padding is covered
+  private static final int WIDTH = 75;
+  private static final int HEIGHT = 53;
+
+  /**
+   * Smooth gradients, which a quality 90 JPEG keeps within a few levels.
+   */
+  private static int[] pattern() {
+    int[] argb = new int[WIDTH * HEIGHT];
+    for (int y = 0; y < HEIGHT; y++) {
+      for (int x = 0; x < WIDTH; x++) {
+        int r = x * 255 / (WIDTH - 1);
+        int g = y * 255 / (HEIGHT - 1);
+        int b = (x + y) * 255 / (WIDTH + HEIGHT - 2);
+        argb[y * WIDTH + x] = 0xFF000000 | r << 16 | g << 8 | b;
+      }
+    }
+    return argb;
+  }
+
+  /**
+   * Encodes the pattern handing over the rows in strips of {@code stripRows}.
+   */
+  private static byte[] encode(int[] argb, int exifOrientation, int stripRows)
+      throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    StripJpegEncoder encoder = new StripJpegEncoder(out, WIDTH, HEIGHT, 90);
+    encoder.writeHeader(exifOrientation);
+    for (int top = 0; top < HEIGHT; top += stripRows) {
+      encoder.writeRows(argb, top * WIDTH, WIDTH, Math.min(stripRows, HEIGHT - top));
+    }
+    encoder.finish();
+    return out.toByteArray();
+  }
+
+  private static int indexOf(byte[] data, byte[] pattern) {
+    outer:
+    for (int i = 0; i + pattern.length <= data.length; i++) {
+      for (int j = 0; j < pattern.length; j++) {
+        if (data[i + j] != pattern[j]) {
+          continue outer;
+        }
+      }
+      return i;
+    }
+    return -1;
+  }
+
+  @Test
+  public void decodesCloseToTheSource() throws IOException {
+    int[] argb = pattern();
+    BufferedImage image = ImageIO.read(new ByteArrayInputStream(encode(argb, 1, 16)));
+    assertNotNull(image);
+    assertEquals(WIDTH, image.getWidth());
+    assertEquals(HEIGHT, image.getHeight());
+
+    long error = 0;
+    for (int y = 0; y < HEIGHT; y++) {
+      for (int x = 0; x < WIDTH; x++) {
+        int expected = argb[y * WIDTH + x];
+        int actual = image.getRGB(x, y);
+        for (int shift = 0; shift <= 16; shift += 8) {
+          error += Math.abs((expected >> shift & 0xFF) - (actual >> shift & 0xFF));
+        }
+      }
+    }
+    double meanError = error / (3.0 * WIDTH * HEIGHT);
+    assertTrue("Mean error " + meanError, meanError < 4);
+  }
+
+  @Test
+  public void stripSizeDoesNotChangeTheOutput() throws IOException {
+    int[] argb = pattern();
+    byte[] expected = encode(argb, 1, HEIGHT);
+    assertArrayEquals(expected, encode(argb, 1, 1));
+    assertArrayEquals(expected, encode(argb, 1, 7));
+  }
+
+  @Test
+  public void writesTheMarkers() throws IOException {
+    byte[] jpeg = encode(pattern(), 1, 16);
+    assertEquals(0xFF, jpeg[0] & 0xFF);
+    assertEquals(0xD8, jpeg[1] & 0xFF);
+    assertEquals(0xFF, jpeg[jpeg.length - 2] & 0xFF);
+    assertEquals(0xD9, jpeg[jpeg.length - 1] & 0xFF);
+    // JFIF first, no Exif for the normal orientation
+    assertEquals(0xE0, jpeg[3] & 0xFF);
+    assertEquals(-1, indexOf(jpeg, new byte[] { 'E', 'x', 'i', 'f', 0, 0 }));
+    // quantization, frame, Huffman tables and scan, in that order
+    int dqt = indexOf(jpeg, new byte[] { (byte) 0xFF, (byte) 0xDB });
+    int sof = indexOf(jpeg, new byte[] { (byte) 0xFF, (byte) 0xC0 });
+    int dht = indexOf(jpeg, new byte[] { (byte) 0xFF, (byte) 0xC4 });
+    int sos = indexOf(jpeg, new byte[] { (byte) 0xFF, (byte) 0xDA });
+    assertTrue(dqt > 0 && dqt < sof && sof < dht && dht < sos);
+  }
+
+  @Test
+  public void writesTheExifOrientation() throws IOException {
+    byte[] jpeg = encode(pattern(), 6, 16);
+    int exif = indexOf(jpeg, new byte[] { 'E', 'x', 'i', 'f', 0, 0 });
+    assertTrue(exif > 0);
+    assertEquals(0xE1, jpeg[exif - 3] & 0xFF);
+    byte[] segment = StripJpegEncoder.exifOrientationSegment(6);
+    assertEquals(exif - 4, indexOf(jpeg, segment));
+    // still decodes, the orientation is only metadata
+    BufferedImage image = ImageIO.read(new ByteArrayInputStream(jpeg));
+    assertEquals(WIDTH, image.getWidth());
+  }
+}
@@ -0,0 +1,47 @@
+package com.example.watermark;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Local tests of filling in the template lines, without EXIF and without drawing.
+ */
+public class WatermarkRenderPlanTest {
+
+  private static WatermarkRenderPlan plan(String... lines) {
+    return new WatermarkRenderPlan(new WatermarkTemplate(Arrays.asList(lines), "bottomRight",
+        0.045f, 0.035f, 0xFFFFFFFF, null, 0, null), null);
+  }
+
+  private static List<String> resolve(WatermarkRenderPlan plan, String dateTime) {
+    return plan.resolve(null, dateTime).lines;
+  }
+
+  @Test
+  public void formatsTheDate() {
+    assertEquals(Collections.singletonList("2020-09-09"),
+        resolve(plan("{date}"), "2020:09:09 12:00:00"));
+    assertEquals(Collections.singletonList("09/2020"),
+        resolve(plan("{date:MM/yyyy}"), "2020:09:09 12:00:00"));
+  }
+
+  @Test
+  public void stampsTheDayOfAnUnparsableDate() {
+    assertEquals(Collections.singletonList("2020/09/09"),
+        resolve(plan("{date}"), "2020/09/09 12:00"));
+    assertEquals(Collections.singletonList("Taken 2020-9-9"),
+        resolve(plan("Taken {date:MM/yyyy}"), "2020-9-9"));
+  }
+
+  @Test
+  public void leavesOutALineWithoutADate() {
+    assertEquals(Collections.singletonList("Watermark"),
+        resolve(plan("{date}", "Watermark"), null));
+    assertEquals(Collections.singletonList("Watermark"),
+        resolve(plan("{date}", "Watermark"), " "));
+  }
+}
@@ -0,0 +1,118 @@
+package com.example.watermark;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Local tests of the WebP chunk inserting, on hand built files: only the headers are looked at, so
+ * the image data does not have to decode.
+ */
+public class WebpChunkInserterTest {
+
+  /**
+   * A simple lossless file with alpha, its VP8L chunk holding only the 5 byte header.
+   */
+  static byte[] losslessWebp(int width, int height) {
+    ByteBuffer buffer = ByteBuffer.allocate(12 + 8 + 6).order(ByteOrder.LITTLE_ENDIAN);
+    buffer.put(ascii("RIFF")).putInt(buffer.capacity() - 8).put(ascii("WEBP"));
+    buffer.put(ascii("VP8L")).putInt(5).put((byte) 0x2F);
+    buffer.putInt((width - 1) | (height - 1) << 14 | 1 << 28);
+    return buffer.array();
+  }
+
+  private static byte[] ascii(String text) {
+    return text.getBytes(StandardCharsets.US_ASCII);
+  }
+
+  private static String fourCc(ByteBuffer buffer, int offset) {
+    byte[] type = new byte[4];
+    for (int i = 0; i < 4; i++) {
+      type[i] = buffer.get(offset + i);
+    }
+    return new String(type, StandardCharsets.US_ASCII);
+  }
+
+  private static int int24(ByteBuffer buffer, int offset) {
+    return (buffer.get(offset) & 0xFF) | (buffer.get(offset + 1) & 0xFF) << 8
+        | (buffer.get(offset + 2) & 0xFF) << 16;
+  }
+
+  @Test
+  public void extendsASimpleFile() {
+    byte[] webp = losslessWebp(5000, 3000);
+    byte[] chunk = WebpChunkInserter.chunk("XMP ", ascii("<x/>"));
+    byte[] extended = WebpChunkInserter.insert(webp, chunk);
+    ByteBuffer buffer = ByteBuffer.wrap(extended).order(ByteOrder.LITTLE_ENDIAN);
+
+    assertEquals(webp.length + 18 + chunk.length, extended.length);
+    assertEquals(extended.length - 8, buffer.getInt(4));
+    assertEquals("VP8X", fourCc(buffer, 12));
+    assertEquals(10, buffer.getInt(16));
+    // alpha and XMP
+    assertEquals(0x14, buffer.get(20));
+    assertEquals(4999, int24(buffer, 24));
+    assertEquals(2999, int24(buffer, 27));
+    // the new chunk, then the image chunk as it was
+    assertArrayEquals(chunk, Arrays.copyOfRange(extended, 30, 30 + chunk.length));
+    assertArrayEquals(Arrays.copyOfRange(webp, 12, webp.length),
+        Arrays.copyOfRange(extended, 30 + chunk.length, extended.length));
+  }
+
+  @Test
+  public void flagsAnExtendedFile() {
+    byte[] simple = WebpChunkInserter.insert(losslessWebp(10, 10),
+        WebpChunkInserter.chunk("EXIF", new byte[6]));
+    byte[] chunk = WebpChunkInserter.chunk("XMP ", ascii("<x/>"));
+    byte[] extended = WebpChunkInserter.insert(simple, chunk);
+    ByteBuffer buffer = ByteBuffer.wrap(extended).order(ByteOrder.LITTLE_ENDIAN);
+
+    // no second VP8X
+    assertEquals(simple.length + chunk.length, extended.length);
+    assertEquals(extended.length - 8, buffer.getInt(4));
+    assertEquals(0x1C, buffer.get(20));
+    // right after VP8X, ahead of the earlier chunk and the image
+    assertEquals("XMP ", fourCc(buffer, 30));
+    assertEquals("EXIF", fourCc(buffer, 30 + chunk.length));
+  }
+
+  @Test
+  public void keepsTheIccProfileFirst() {
+    byte[] simple = WebpChunkInserter.insert(losslessWebp(10, 10),
+        WebpChunkInserter.chunk("EXIF", new byte[6]));
+    byte[] icc = WebpChunkInserter.chunk("ICCP", new byte[7]);
+    ByteBuffer withIcc = ByteBuffer.allocate(simple.length + icc.length)
+        .order(ByteOrder.LITTLE_ENDIAN);
+    withIcc.put(simple, 0, 30).put(icc).put(simple, 30, simple.length - 30);
+    withIcc.putInt(4, withIcc.capacity() - 8);
+    byte[] chunk = WebpChunkInserter.chunk("XMP ", ascii("<x/>"));
+    ByteBuffer buffer = ByteBuffer.wrap(WebpChunkInserter.insert(withIcc.array(), chunk))
+        .order(ByteOrder.LITTLE_ENDIAN);
+
+    assertEquals("ICCP", fourCc(buffer, 30));
+    assertEquals("XMP ", fourCc(buffer, 30 + icc.length));
+  }
+
+  @Test
+  public void padsOddChunks() {
+    byte[] chunk = WebpChunkInserter.chunk("XMP ", ascii("abc"));
+    assertEquals(12, chunk.length);
+    assertEquals(3, ByteBuffer.wrap(chunk).order(ByteOrder.LITTLE_ENDIAN).getInt(4));
+  }
+
+  @Test
+  public void leavesOtherFilesAlone() {
+    byte[] chunk = WebpChunkInserter.chunk("XMP ", ascii("<x/>"));
+    byte[] png = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n', 0, 0, 0, 13, 'I', 'H',
+        'D', 'R', 0, 0, 0, 1 };
+    assertSame(png, WebpChunkInserter.insert(png, chunk));
+    byte[] truncated = Arrays.copyOf(losslessWebp(10, 10), 22);
+    assertSame(truncated, WebpChunkInserter.insert(truncated, chunk));
+  }
+}